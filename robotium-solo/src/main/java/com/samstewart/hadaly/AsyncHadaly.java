@@ -0,0 +1,315 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import junit.framework.AssertionFailedError;
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.view.KeyEvent;
+import android.view.View;
+import android.webkit.WebView;
+
+import com.samstewart.hadaly.actions.Actions;
+import com.samstewart.hadaly.actions.ActivityWatcher;
+
+/**
+ * Non-blocking variant of {@link Hadaly}: every method returns a {@link HadalyFuture}
+ * right away so independent work can overlap, e.g. waiting for a web page to load
+ * while typing into a native field. Obtained through {@link Hadaly#async()}.
+ *
+ * Waits don't park threads: views are looked for from the UI thread's layout and draw
+ * callbacks (see {@link ViewWaiter}), idle waits complete from an idle handler and JS
+ * queries from the bridge callback. Only input injection, which the instrumentation
+ * requires to come from a thread other than the UI thread, runs on a single dedicated
+ * thread, which also keeps touches and key events in order.
+ *
+ * <pre>
+ * HadalyFuture&lt;View&gt; login = async.enterText("#email", "sam@example.com");
+ * HadalyFuture&lt;Boolean&gt; page = async.waitForPageLoad("#terms");
+ * HadalyFuture.all(login, page).await(20000);
+ * </pre>
+ * @author samstewart
+ *
+ */
+public class AsyncHadaly {
+
+	private final ActivityWatcher mActivityWatcher;
+
+	private final ViewFetcher mViewSearcher;
+
+	private final InstrumentationTestCase mTestCase;
+
+	private final IdleSynchronizer mIdleSynchronizer;
+
+	private final Screenshotter mScreenshotter;
+
+	private final int mTimeout;
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	// our own, the fetcher's is used from the test thread
+	private final WindowRoots mWindowRoots = new WindowRoots();
+
+	// looked up whenever a wait checks, so waits follow navigation
+	private final ViewWaiter.Roots mRoots = new ViewWaiter.Roots() {
+		@Override
+		public List<View> getRoots() {
+			return getRootViews();
+		}
+	};
+
+	// steps still waiting on the app, cancelled by shutdown(); guarded by itself
+	private final Set<HadalyFuture<?>> mPending = new HashSet<HadalyFuture<?>>();
+
+	private boolean mShutdown; // guarded by mPending
+
+	private final ExecutorService mInputExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, Hadaly.LOGGING_TAG + "-input");
+			thread.setDaemon(true); // never keep the test process alive
+			return thread;
+		}
+	});
+
+	AsyncHadaly(ActivityWatcher activityWatcher, ViewFetcher viewSearcher, InstrumentationTestCase testCase,
+				IdleSynchronizer idleSynchronizer, Screenshotter screenshotter, int timeout) {
+		mActivityWatcher = activityWatcher;
+		mViewSearcher = viewSearcher;
+		mTestCase = testCase;
+		mIdleSynchronizer = idleSynchronizer;
+		mScreenshotter = screenshotter;
+		mTimeout = timeout;
+	}
+
+	/**
+	 * @return Completed with the first shown view matching the selector, or null if none showed up in time
+	 */
+	public HadalyFuture<View> waitForView(String selector, int timeout) {
+		return track(new ViewWaiter(mRoots, Selector.compile(selector)).start(timeout));
+	}
+
+	/**
+	 * @return Completed with true once the app has settled, false if it didn't in time
+	 */
+	public HadalyFuture<Boolean> waitForIdle() {
+		return waitForIdle(null);
+	}
+
+	/**
+	 * Taps the view once it shows up and the app has settled afterwards.
+	 * @return Completed with the view that was tapped
+	 */
+	public HadalyFuture<View> tap(String selector) {
+		return whenShown(selector).then(new HadalyFuture.Transform<View, View>() {
+			@Override
+			public View apply(View view) {
+				Actions.tapAction().doAction(getCurrentActivity(), mTestCase, view);
+				return view;
+			}
+		}, mInputExecutor).chain(new SettleChain<View>());
+	}
+
+	/**
+	 * Types the text into the view once it shows up.
+	 * @return Completed with the view the text was entered into
+	 */
+	public HadalyFuture<View> enterText(String selector, final String text) {
+		return whenShown(selector).then(new HadalyFuture.Transform<View, View>() {
+			@Override
+			public View apply(View view) {
+				Actions.enterTextAction(text, mIdleSynchronizer).doAction(getCurrentActivity(), mTestCase, view);
+				return view;
+			}
+		}, mInputExecutor).chain(new SettleChain<View>());
+	}
+
+	public HadalyFuture<Void> goBack() {
+		return run(new Callable<Void>() {
+			@Override
+			public Void call() {
+				Actions.sendKeycodeAction(KeyEvent.KEYCODE_BACK).doAction(null, mTestCase, null);
+				return null;
+			}
+		}).chain(new SettleChain<Void>());
+	}
+
+	/**
+	 * @param webviewSelector The selector for the WebView in the view hierarchy
+	 * @return Completed with true once the page has fully loaded and the app has settled
+	 */
+	public HadalyFuture<Boolean> waitForPageLoad(String webviewSelector) {
+		return whenShown(webviewSelector).chain(new HadalyFuture.Chain<View, Boolean>() {
+			@Override
+			public HadalyFuture<Boolean> apply(View view) {
+				final WebView webView = (WebView)view;
+
+				return waitForIdle(new IdleSynchronizer.Condition() {
+					@Override
+					public boolean isSatisfied() {
+						return webView.getProgress() == 100;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return Completed once the screenshot has been written
+	 */
+	public HadalyFuture<Void> takeScreenshot() {
+		final HadalyFuture<Void> done = new HadalyFuture<Void>();
+
+		mScreenshotter.takeScreenshot(getCurrentActivity());
+
+		// the screenshot is taken by a message on the UI thread, we run right after it
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				done.complete(null);
+			}
+		});
+
+		return done;
+	}
+
+	/**
+	 * Runs any work on the input thread, e.g. a custom {@link com.samstewart.hadaly.actions.Action}.
+	 */
+	public <T> HadalyFuture<T> run(final Callable<T> work) {
+		final HadalyFuture<T> result = track(new HadalyFuture<T>());
+
+		if (result.isDone()) return result; // shut down
+
+		mInputExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.complete(work.call());
+				} catch (Throwable t) {
+					result.fail(t);
+				}
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Stops the input thread and cancels every step still waiting, so nothing runs
+	 * into the next test. Called by {@link Hadaly#tearDown()}.
+	 */
+	public void shutdown() {
+		ArrayList<HadalyFuture<?>> pending;
+
+		synchronized (mPending) {
+			mShutdown = true;
+
+			pending = new ArrayList<HadalyFuture<?>>(mPending);
+			mPending.clear();
+		}
+
+		for (HadalyFuture<?> future : pending) future.cancel(false); // a view wait stops itself
+
+		mInputExecutor.shutdownNow();
+		mWindowRoots.clear();
+	}
+
+	/**
+	 * Keeps the future until it's done so {@link #shutdown()} can cancel it, cancels
+	 * it right away if we're already shut down.
+	 */
+	private <T> HadalyFuture<T> track(final HadalyFuture<T> future) {
+		boolean shutdown;
+
+		synchronized (mPending) {
+			shutdown = mShutdown;
+			if ( ! shutdown) mPending.add(future);
+		}
+
+		if (shutdown) {
+			future.cancel(false);
+			return future;
+		}
+
+		return future.addListener(new HadalyFuture.Listener<T>() {
+			@Override
+			public void onComplete(HadalyFuture<T> done) {
+				synchronized (mPending) {
+					mPending.remove(done);
+				}
+			}
+		});
+	}
+
+	private HadalyFuture<View> whenShown(final String selector) {
+		return waitForView(selector, mTimeout).then(new HadalyFuture.Transform<View, View>() {
+			@Override
+			public View apply(View view) {
+				if (view == null) throw new AssertionFailedError("Timed out waiting for: " + selector);
+				return view;
+			}
+		}, null);
+	}
+
+	private HadalyFuture<Boolean> waitForIdle(IdleSynchronizer.Condition condition) {
+		final HadalyFuture<Boolean> idle = track(new HadalyFuture<Boolean>());
+
+		if (idle.isDone()) return idle; // shut down
+
+		// looked up now, when the step before has finished
+		mIdleSynchronizer.waitForIdle(getRootViews(), condition, mIdleSynchronizer.getTimeout(), new IdleSynchronizer.Callback() {
+			@Override
+			public void onIdle(boolean settled) {
+				idle.complete(settled);
+			}
+		});
+
+		return idle;
+	}
+
+	/** Waits for the app to settle after a step and passes the step's result on. */
+	private class SettleChain<T> implements HadalyFuture.Chain<T, T> {
+		@Override
+		public HadalyFuture<T> apply(final T value) {
+			return waitForIdle(null).then(new HadalyFuture.Transform<Boolean, T>() {
+				@Override
+				public T apply(Boolean settled) {
+					return value;
+				}
+			}, null);
+		}
+	}
+
+	private Activity getCurrentActivity() {
+		return mActivityWatcher.getCurrentActivity();
+	}
+
+	/**
+	 * @return The current activity's decor view, or every window's root in multi window mode
+	 */
+	private List<View> getRootViews() {
+		View root = getRootView();
+
+		if ( ! mViewSearcher.isMultiWindowMode())
+			return (root != null ? Collections.singletonList(root) : Collections.<View>emptyList());
+
+		return mWindowRoots.getRoots(root);
+	}
+
+	private View getRootView() {
+		Activity activity = getCurrentActivity();
+
+		return (activity != null ? activity.getWindow().getDecorView() : null);
+	}
+}
@@ -0,0 +1,111 @@
+package com.samstewart.hadaly;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves and caches the 'getPropName' / 'isPropName' accessor used for
+ * arbitrary attribute selectors ('[enabled='true']', '[hint='Email']').
+ *
+ * The lookup is done once per (view class, property) pair and cached,
+ * including misses, so matching a node costs a map lookup and a method call
+ * instead of scanning the class' methods.
+ * @author samstewart
+ *
+ */
+class AttributeAccessors {
+
+	/** Returned by {@link #getValue(Object, String)} if the view has no such property */
+	public static final Object NO_PROPERTY = new Object();
+
+	// marks a (class, property) pair we've already looked up and failed to find
+	private static final Method MISSING;
+
+	static {
+		try {
+			MISSING = AttributeAccessors.class.getDeclaredMethod("missing");
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Method>> accessors =
+			new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Method>>();
+
+	private AttributeAccessors() {}
+
+	@SuppressWarnings("unused")
+	private static void missing() {}
+
+	/**
+	 * @param target The view to read the property from
+	 * @param property The property name as used in the selector ('enabled')
+	 * @return The property value (possibly null) or {@link #NO_PROPERTY}
+	 */
+	public static Object getValue(Object target, String property) {
+		Method accessor = getAccessor(target.getClass(), property);
+
+		if (accessor == null) return NO_PROPERTY;
+
+		try {
+			return accessor.invoke(target);
+		} catch (Exception e) {
+			return NO_PROPERTY;
+		}
+	}
+
+	/**
+	 * @return The accessor for the property or null if the class doesn't have one
+	 */
+	public static Method getAccessor(Class<?> viewClass, String property) {
+		ConcurrentHashMap<String, Method> classAccessors = accessors.get(viewClass);
+
+		if (classAccessors == null) {
+			ConcurrentHashMap<String, Method> created = new ConcurrentHashMap<String, Method>();
+
+			classAccessors = accessors.putIfAbsent(viewClass, created);
+			if (classAccessors == null) classAccessors = created;
+		}
+
+		Method accessor = classAccessors.get(property);
+
+		if (accessor == null) {
+			accessor = resolve(viewClass, property);
+			classAccessors.put(property, accessor);
+		}
+
+		return (accessor == MISSING ? null : accessor);
+	}
+
+	private static Method resolve(Class<?> viewClass, String property) {
+		if (property.length() == 0) return MISSING;
+
+		String capitalized = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+
+		Method accessor = findNoArgMethod(viewClass, "get" + capitalized);
+
+		if (accessor == null)
+			accessor = findNoArgMethod(viewClass, "is" + capitalized);
+
+		if (accessor == null) return MISSING;
+
+		try {
+			// public methods on non-public view classes are otherwise not invokable
+			accessor.setAccessible(true);
+		} catch (SecurityException e) {
+			// fall through, invoke will fail and the attribute just won't match
+		}
+
+		return accessor;
+	}
+
+	private static Method findNoArgMethod(Class<?> viewClass, String name) {
+		try {
+			Method method = viewClass.getMethod(name);
+
+			return (method.getReturnType() == Void.TYPE ? null : method);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
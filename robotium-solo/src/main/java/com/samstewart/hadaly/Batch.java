@@ -0,0 +1,251 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+
+import junit.framework.Assert;
+import android.app.Activity;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+import android.widget.CompoundButton;
+import android.widget.TextView;
+
+import com.samstewart.hadaly.actions.Action;
+import com.samstewart.hadaly.actions.Actions;
+import com.samstewart.hadaly.actions.ActivityWatcher;
+
+/**
+ * Queues up a number of steps and runs them with as few thread hand offs as possible.
+ * Obtained through {@link Hadaly#batch()}:
+ *
+ * <pre>
+ * hadaly.batch()
+ *       .setText("#email", "sam@example.com")
+ *       .setText("#password", "secret")
+ *       .setChecked("#remember", true)
+ *       .tap("#login")
+ *       .run();
+ * </pre>
+ *
+ * When run, every selector is resolved against a single snapshot of the hierarchy
+ * (waiting for views which aren't shown yet like {@link Hadaly#waitForView(String, int)} does).
+ * Consecutive UI mutations (setText, performClick, ...) are then applied in one
+ * message on the main thread. Steps which have to come from the instrumentation
+ * thread (real touches, key events, custom {@link Action}s) run in between, in order.
+ * We wait for the app to go idle once, at the very end.
+ *
+ * Views are resolved up front, so a step can't target a view created by an earlier
+ * step in the same batch; use a new batch for that.
+ * @author samstewart
+ *
+ */
+public class Batch {
+
+	/**
+	 * A mutation applied to a view on the main thread.
+	 */
+	public interface ViewOperation {
+		void apply(View view);
+	}
+
+	/** A queued step; either a main thread operation or an instrumentation thread action. */
+	private static class Step {
+		final String selector;
+
+		final ViewOperation operation;
+
+		final Action action;
+
+		Step(String selector, ViewOperation operation, Action action) {
+			this.selector = selector;
+			this.operation = operation;
+			this.action = action;
+		}
+
+		boolean onMainThread() {
+			return operation != null;
+		}
+	}
+
+	private final ViewFetcher mViewSearcher;
+
+	private final ActivityWatcher mActivityWatcher;
+
+	private final InstrumentationTestCase mTestCase;
+
+	private final IdleSynchronizer mIdleSynchronizer;
+
+	private final int mTimeout;
+
+	private final ArrayList<Step> mSteps = new ArrayList<Step>();
+
+	Batch(ViewFetcher viewSearcher, ActivityWatcher activityWatcher, InstrumentationTestCase testCase,
+		  IdleSynchronizer idleSynchronizer, int timeout) {
+		mViewSearcher = viewSearcher;
+		mActivityWatcher = activityWatcher;
+		mTestCase = testCase;
+		mIdleSynchronizer = idleSynchronizer;
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Replaces the text of a TextView (or EditText) directly, without typing it.
+	 */
+	public Batch setText(String selector, final String text) {
+		return apply(selector, new ViewOperation() {
+			@Override
+			public void apply(View view) {
+				Assert.assertTrue(view instanceof TextView);
+
+				((TextView)view).setText(text);
+			}
+		});
+	}
+
+	/**
+	 * Checks or unchecks a CheckBox, RadioButton or ToggleButton.
+	 */
+	public Batch setChecked(String selector, final boolean checked) {
+		return apply(selector, new ViewOperation() {
+			@Override
+			public void apply(View view) {
+				Assert.assertTrue(view instanceof CompoundButton);
+
+				((CompoundButton)view).setChecked(checked);
+			}
+		});
+	}
+
+	/**
+	 * Clicks the view through {@link View#performClick()} on the main thread. Use
+	 * {@link #tap(String)} to inject a real touch instead.
+	 */
+	public Batch click(String selector) {
+		return apply(selector, new ViewOperation() {
+			@Override
+			public void apply(View view) {
+				view.performClick();
+			}
+		});
+	}
+
+	/**
+	 * Applies any mutation to the view on the main thread.
+	 */
+	public Batch apply(String selector, ViewOperation operation) {
+		Assert.assertNotNull(selector);
+		Assert.assertNotNull(operation);
+
+		mSteps.add(new Step(selector, operation, null));
+		return this;
+	}
+
+	/**
+	 * Taps the view with real touch events (from the instrumentation thread).
+	 */
+	public Batch tap(String selector) {
+		return action(selector, Actions.tapAction());
+	}
+
+	/**
+	 * Sends a key event (from the instrumentation thread).
+	 */
+	public Batch sendKey(int keycode) {
+		return action(null, Actions.sendKeycodeAction(keycode));
+	}
+
+	/**
+	 * Runs an action from the instrumentation thread.
+	 * @param selector The view to act on or null if the action doesn't need one
+	 */
+	public Batch action(String selector, Action action) {
+		Assert.assertNotNull(action);
+
+		mSteps.add(new Step(selector, null, action));
+		return this;
+	}
+
+	/**
+	 * Resolves every selector, runs the steps in order and waits for the app to go idle.
+	 * Fails the test if a selector doesn't match within the timeout.
+	 */
+	public void run() {
+		Tracer.begin("Batch.run");
+		try {
+			Activity activity = mActivityWatcher.getCurrentActivity();
+
+			mViewSearcher.setActivity(activity);
+
+			View[] views = resolve();
+
+			int step = 0;
+			while (step < mSteps.size()) {
+				if (mSteps.get(step).onMainThread()) {
+					step = runOnMainThread(step, views);
+				} else {
+					mSteps.get(step).action.doAction(activity, mTestCase, views[step]);
+					step++;
+				}
+			}
+
+			mIdleSynchronizer.waitForIdle(mViewSearcher.getRootViews());
+		} finally {
+			Tracer.end();
+		}
+	}
+
+	private View[] resolve() {
+		// only steps with a selector need a view
+		ArrayList<Selector> selectors = new ArrayList<Selector>();
+		for (Step step : mSteps)
+			if (step.selector != null) selectors.add(Selector.compile(step.selector));
+
+		View[] resolved = mViewSearcher.waitForViews(selectors.toArray(new Selector[selectors.size()]), mTimeout);
+
+		View[] views = new View[mSteps.size()];
+
+		for (int i = 0, selector = 0; i < mSteps.size(); i++) {
+			if (mSteps.get(i).selector == null) continue;
+
+			views[i] = resolved[selector++];
+
+			Assert.assertNotNull("Timed out waiting for: " + mSteps.get(i).selector, views[i]);
+		}
+
+		return views;
+	}
+
+	/**
+	 * Runs the main thread steps starting at first in a single message.
+	 * @return The index of the first step after them
+	 */
+	private int runOnMainThread(final int first, final View[] views) {
+		int last = first;
+		while (last < mSteps.size() && mSteps.get(last).onMainThread()) last++;
+
+		final int end = last;
+		final Throwable[] failure = new Throwable[1];
+
+		Tracer.begin("Batch.ui");
+		try {
+			mTestCase.getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					// don't let an assertion kill the main thread, rethrow it on ours
+					try {
+						for (int i = first; i < end; i++) mSteps.get(i).operation.apply(views[i]);
+					} catch (Throwable t) {
+						failure[0] = t;
+					}
+				}
+			});
+		} finally {
+			Tracer.end();
+		}
+
+		if (failure[0] instanceof Error) throw (Error)failure[0];
+		if (failure[0] instanceof RuntimeException) throw (RuntimeException)failure[0];
+		if (failure[0] != null) Assert.fail(failure[0].getMessage());
+
+		return end;
+	}
+}
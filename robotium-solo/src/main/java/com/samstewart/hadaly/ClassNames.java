@@ -0,0 +1,51 @@
+package com.samstewart.hadaly;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the simple names of every superclass and interface of a view class
+ * so class selectors ('.Button', '.Checkable') match subclasses and implementors
+ * with a single hash lookup instead of walking the class hierarchy for every view.
+ * @author samstewart
+ *
+ */
+class ClassNames {
+
+	private static final ConcurrentHashMap<Class<?>, Set<String>> names =
+			new ConcurrentHashMap<Class<?>, Set<String>>();
+
+	private ClassNames() {}
+
+	/**
+	 * @return The simple names of the class, all of its superclasses and all
+	 * of the interfaces they implement.
+	 */
+	public static Set<String> getSimpleNames(Class<?> viewClass) {
+		Set<String> simpleNames = names.get(viewClass);
+
+		if (simpleNames == null) {
+			HashSet<String> collected = new HashSet<String>();
+
+			for (Class<?> cur = viewClass; cur != null; cur = cur.getSuperclass()) {
+				collected.add(cur.getSimpleName());
+				addInterfaces(cur, collected);
+			}
+
+			// a racing thread computes the same set so it doesn't matter who wins
+			simpleNames = Collections.unmodifiableSet(collected);
+			names.put(viewClass, simpleNames);
+		}
+
+		return simpleNames;
+	}
+
+	private static void addInterfaces(Class<?> type, Set<String> collected) {
+		for (Class<?> implemented : type.getInterfaces()) {
+			if (collected.add(implemented.getSimpleName()))
+				addInterfaces(implemented, collected);
+		}
+	}
+}
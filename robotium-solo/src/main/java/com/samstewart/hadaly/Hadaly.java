@@ -1,7 +1,13 @@
 package com.samstewart.hadaly;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
 import junit.framework.Assert;
 import android.app.Activity;
+import android.os.SystemClock;
+import android.util.Log;
 import android.test.InstrumentationTestCase;
 import android.view.KeyEvent;
 import android.view.View;
@@ -9,6 +15,7 @@ import android.webkit.WebView;
 
 import com.samstewart.hadaly.actions.Actions;
 import com.samstewart.hadaly.actions.ActivityWatcher;
+import com.samstewart.hadaly.sharding.TestDurations;
 
 /**
  * Main utility class for running UI tests.
@@ -48,6 +55,18 @@ public class Hadaly {
 	
 	private ActivityWatcher mActivityWatcher;
 	
+	private IdleSynchronizer mIdleSynchronizer;
+	
+	private File mTraceDirectory = Tracer.getDefaultDirectory();
+	
+	private AsyncHadaly mAsync;
+	
+	private Script mRecording;
+	
+	private File mDurationHistory;
+	
+	private final long mStartTime = SystemClock.uptimeMillis();
+	
 	private static int mWaitTime = 500; // standard time to wait in between actions, etc.
 	
 	protected final int TIMEOUT = 20000;
@@ -60,9 +79,10 @@ public class Hadaly {
 	
 	public Hadaly(InstrumentationTestCase testCase, Activity activity) {
         mTestCase = testCase;
-        mViewSearcher 	 = new ViewFetcher(activity);
+        mViewSearcher 	 = new ViewFetcher(activity, testCase.getInstrumentation());
         mScreenshotter	 = new Screenshotter();
-        mActivityWatcher = new ActivityWatcher(testCase.getInstrumentation(), activity);
+        mIdleSynchronizer = new IdleSynchronizer();
+        mActivityWatcher = new ActivityWatcher(testCase.getInstrumentation(), activity, mIdleSynchronizer);
 	}
 
 
@@ -79,20 +99,125 @@ public class Hadaly {
 		return mWaitTime;
 	}
 	
+	/**
+	 * Match selectors against a snapshot of the view hierarchy copied in a single hop
+	 * to the UI thread instead of walking live views from the test thread. Off by
+	 * default since snapshots bypass the index (see {@link #setIndexedLookups(boolean)}).
+	 * @param snapshotMatching Whether to match against snapshots
+	 */
+	public void setSnapshotMatching(boolean snapshotMatching) {
+		mViewSearcher.setSnapshotMode(snapshotMatching);
+	}
+	
+	/**
+	 * Search every window of the app, topmost first, so views in dialogs, popup
+	 * windows and spinner dropdowns can be found too.
+	 * @param multiWindow Whether to search all windows
+	 */
+	public void setMultiWindowSearch(boolean multiWindow) {
+		mViewSearcher.setMultiWindowMode(multiWindow);
+	}
+	
+	/**
+	 * Only search views which are VISIBLE, skipping hidden subtrees (tab content,
+	 * detached fragments) entirely.
+	 * @param visibleOnly Whether to prune views which aren't visible
+	 */
+	public void setVisibleOnly(boolean visibleOnly) {
+		mViewSearcher.setVisibleOnly(visibleOnly);
+	}
+	
+	/**
+	 * Also skip views which are clipped out of sight entirely, e.g. scrolled out
+	 * of a ScrollView.
+	 * @param skipClipped Whether to prune views without a visible rect
+	 */
+	public void setSkipClippedViews(boolean skipClipped) {
+		mViewSearcher.setSkipClipped(skipClipped);
+	}
+	
+	/**
+	 * Match large hierarchies on several cores. Implies snapshot matching.
+	 * @param parallel Whether to match in parallel
+	 */
+	public void setParallelMatching(boolean parallel) {
+		mViewSearcher.setParallelMode(parallel);
+	}
+	
+	/**
+	 * @param threshold Hierarchies with fewer views than this are still matched sequentially
+	 * once parallel matching is on (see {@link #setParallelMatching(boolean)})
+	 */
+	public void setParallelMatchingThreshold(int threshold) {
+		mViewSearcher.setParallelThreshold(threshold);
+	}
+	
+	/**
+	 * Answer id, tag and contentDescription lookups from an index of the view
+	 * hierarchy which is rebuilt after every layout pass, instead of walking the
+	 * whole hierarchy for every query.
+	 * @param indexed Whether to use the index
+	 */
+	public void setIndexedLookups(boolean indexed) {
+		mViewSearcher.setIndexMode(indexed);
+	}
+	
+	/**
+	 * Remember what each selector resolved to until the hierarchy changes or is laid out
+	 * so repeated taps on the same selector don't search again.
+	 * @param cached Whether to cache lookups
+	 */
+	public void setCachedLookups(boolean cached) {
+		mViewSearcher.setCacheMode(cached);
+	}
+	
 	
 	public void goBack() {
+		Tracer.begin("Hadaly.goBack");
+		try {
+			pressBack();
+		} finally {
+			Tracer.end();
+		}
+	}
+	
+	private void pressBack() {
 		Assert.assertNotNull(mTestCase);
 		
 		try {
 			Actions.sendKeycodeAction(KeyEvent.KEYCODE_BACK).doAction(null, mTestCase, null);
 			
-			sleep(mWaitTime);
+			settle();
+			
+			record(Script.Command.GO_BACK);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
 	
+	/**
+	 * Waits until the app has settled: the main thread has nothing left to do, no
+	 * animation is running and no layout is pending. Gives up after the idle timeout.
+	 * @return false if the app didn't settle in time
+	 */
+	public boolean waitForIdle() {
+		record(Script.Command.WAIT_FOR_IDLE);
+		
+		return settle();
+	}
+	
+	private boolean settle() {
+		return mIdleSynchronizer.waitForIdle(mViewSearcher.getRootViews());
+	}
+	
+	/**
+	 * @param timeout The longest to wait for the app to settle after an action (in milliseconds)
+	 */
+	public void setIdleTimeout(int timeout) {
+		mIdleSynchronizer.setTimeout(timeout);
+	}
+	
 	public void closeAllActivities() {
 		mActivityWatcher.closeAllActivities();
 	}
@@ -108,20 +233,27 @@ public class Hadaly {
 	 * @param htmlSelector The selector *within* the WebView's HTML content
 	 */
 	public void tapInWebview(String webviewSelector, String htmlSelector) {
-		// get the webview first
-		View webview = attemptGetView(webviewSelector);
-		if (webview != null) {
-			// now try to tap an html element
-			Actions.tapWebviewAction(htmlSelector).doAction(mActivityWatcher.getCurrentActivity(), 
-															mTestCase, 
-															webview);
+		Tracer.begin("Hadaly.tapInWebview");
+		try {
+			// get the webview first
+			View webview = attemptGetView(webviewSelector);
+			if (webview != null) {
+				// now try to tap an html element
+				Actions.tapWebviewAction(htmlSelector, mIdleSynchronizer).doAction(mActivityWatcher.getCurrentActivity(), 
+																mTestCase, 
+																webview);
+				
+				record(Script.Command.TAP_IN_WEBVIEW, webviewSelector, htmlSelector);
+			}
+		} finally {
+			Tracer.end();
 		}
 	}
 	
 	public WebViewWrapper getWebViewWrapper(String webviewSelector) {
         View webview = attemptGetView(webviewSelector);
         if (webview != null) {
-            WebViewWrapper wrapper = new WebViewWrapper((WebView) webview, mTestCase);
+            WebViewWrapper wrapper = new WebViewWrapper((WebView) webview, mTestCase, mIdleSynchronizer);
             return wrapper;
         }
         
@@ -129,53 +261,243 @@ public class Hadaly {
 	}
 	
 	public void tap(String selector) {
-		View view = attemptGetView(selector);
-		
-		if (view != null)
-			Actions.tapAction().doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+		Tracer.begin("Hadaly.tap");
+		try {
+			View view = attemptGetView(selector);
+			
+			if (view != null)
+				Actions.tapAction().doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+			
+			settle();
+			
+			record(Script.Command.TAP, selector);
+		} finally {
+			Tracer.end();
+		}
 	}
 	
 	private View attemptGetView(String selector) {
-		// TODO: should I be running on the activity thread instead of this thread?
 		Assert.assertNotNull(mTestCase);
 		
-		//TODO: needs to timeout if it can't find the element
 		Assert.assertNotNull(selector);
 		
-		Selector select = new Selector(selector);
+		View view = findView(selector, TIMEOUT);
 		
-		Assert.assertNotNull(select);
+		Assert.assertNotNull("Timed out waiting for: " + selector, view);
 		
-		mViewSearcher.setActivity(mActivityWatcher.getCurrentActivity());
+		// already known to be shown when invisible subtrees are pruned
+		if ( ! mViewSearcher.isVisibleOnly()) Assert.assertTrue(view.isShown());
 		
-		View view = mViewSearcher.getView(select);
-		
-		Assert.assertNotNull(view);
+		return view;
+	}
+	
+	/**
+	 * Waits for a view matching the selector to be shown. The hierarchy is only searched
+	 * again after it has been laid out or redrawn so this returns as soon as the view
+	 * appears, there is no need to sleep before looking for a view.
+	 * @param selector The selector for the view in the view hierarchy
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return The first shown view matching the selector or null if it didn't show up in time
+	 */
+	public View waitForView(String selector, int timeout) {
+		View view = findView(selector, timeout);
 		
-		Assert.assertTrue(view.isShown());
+		if (view != null) record(Script.Command.WAIT_FOR_VIEW, selector);
 		
 		return view;
 	}
 	
-	public void enterText(String selector, String text) {
-		View view = attemptGetView(selector);
-		if (view != null)
-			Actions.enterTextAction(text).doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+	private View findView(String selector, int timeout) {
+		Tracer.begin("Hadaly.waitForView");
+		try {
+			Assert.assertNotNull(selector);
+			
+			Selector select = Selector.compile(selector);
+			
+			long deadline = SystemClock.uptimeMillis() + timeout;
+			
+			while (true) {
+				mViewSearcher.setActivity(mActivityWatcher.getCurrentActivity());
+				
+				long remaining = deadline - SystemClock.uptimeMillis();
+				
+				// no window to observe, block until an activity is created rather than spin
+				if (mViewSearcher.getRootViews().isEmpty()) {
+					if (remaining <= 0 || mActivityWatcher.waitForCurrentActivity(remaining) == null) return null;
+					
+					continue;
+				}
+				
+				// a new activity doesn't touch the window we are observing, so check for one now and then
+				View view = mViewSearcher.waitForView(select, Math.max(0, Math.min(remaining, ACTIVITY_WAIT_TIMEOUT)));
+				
+				if (view != null || remaining <= ACTIVITY_WAIT_TIMEOUT) return view;
+			}
+		} finally {
+			Tracer.end();
+		}
+	}
+	
+	/**
+	 * Starts recording tap, enterText, goBack, tapInWebview, waitForView and waitForIdle
+	 * calls (sleeps are recorded as idle waits) into a {@link Script}.
+	 */
+	public void startRecording() {
+		mRecording = new Script();
+	}
+	
+	/**
+	 * @return The steps recorded since {@link #startRecording()} (null if we weren't recording)
+	 */
+	public Script stopRecording() {
+		Script recording = mRecording;
+		mRecording = null;
 		
+		return recording;
+	}
+	
+	public boolean isRecording() {
+		return mRecording != null;
+	}
+	
+	/**
+	 * Replays a recorded (or hand written) script back to back: selectors are parsed once,
+	 * views are resolved from shared hierarchy snapshots and the only pauses are waits
+	 * for the app to go idle. Fails the test if a view doesn't show up in time.
+	 */
+	public void replay(Script script) {
+		Assert.assertNotNull(script);
+		
+		new Replayer(mViewSearcher, mActivityWatcher, mTestCase, mIdleSynchronizer, TIMEOUT).replay(script);
+	}
+	
+	private void record(Script.Command command, String... arguments) {
+		if (mRecording != null) mRecording.add(command, arguments);
+	}
+	
+	/**
+	 * Starts a batch of steps which share a single hierarchy snapshot, apply their
+	 * UI mutations in one hop to the main thread and wait for idle once at the end.
+	 * @return An empty batch, call {@link Batch#run()} once it has been filled in
+	 */
+	public Batch batch() {
+		Assert.assertNotNull(mTestCase);
+		
+		return new Batch(mViewSearcher, mActivityWatcher, mTestCase, mIdleSynchronizer, TIMEOUT);
+	}
+	
+	/**
+	 * @return The non-blocking variant of this API, sharing our activity tracking
+	 */
+	public AsyncHadaly async() {
+		if (mAsync == null)
+			mAsync = new AsyncHadaly(mActivityWatcher, mViewSearcher, mTestCase, mIdleSynchronizer, mScreenshotter, TIMEOUT);
+		
+		return mAsync;
+	}
+	
+	/**
+	 * Finds every view matching the selector in a single traversal.
+	 * @param selector The selector for the views in the view hierarchy
+	 * @return The matching views in document order (empty if none match)
+	 */
+	public List<View> findAll(String selector) {
+		return findAll(selector, ViewFetcher.NO_LIMIT);
+	}
+	
+	/**
+	 * Finds the views matching the selector, stopping the traversal early once
+	 * limit views have been found.
+	 * @param selector The selector for the views in the view hierarchy
+	 * @param limit The maximum number of views to return
+	 * @return The matching views in document order (empty if none match)
+	 */
+	public List<View> findAll(String selector, int limit) {
+		Assert.assertNotNull(selector);
 		
+		mViewSearcher.setActivity(mActivityWatcher.getCurrentActivity());
+		
+		return mViewSearcher.getViews(Selector.compile(selector), limit);
+	}
+	
+	/**
+	 * Evaluates a comma separated group of selectors ('#error, .ProgressBar, .ListView')
+	 * in a single traversal.
+	 * @param selectorGroup The alternative selectors
+	 * @return Every matching view in document order along with the alternative it matched
+	 */
+	public List<SelectorMatch> findAllMatches(String selectorGroup) {
+		Assert.assertNotNull(selectorGroup);
+		
+		mViewSearcher.setActivity(mActivityWatcher.getCurrentActivity());
+		
+		return mViewSearcher.getMatches(SelectorGroup.compile(selectorGroup), ViewFetcher.NO_LIMIT);
+	}
+	
+	/**
+	 * Figures out which of several alternatives is currently on screen, e.g. which
+	 * state a screen is in.
+	 * @param selectorGroup The alternative selectors
+	 * @return The first matching view in document order along with the alternative 
+	 * it matched, or null if none of them match
+	 */
+	public SelectorMatch findFirstMatch(String selectorGroup) {
+		Assert.assertNotNull(selectorGroup);
+		
+		mViewSearcher.setActivity(mActivityWatcher.getCurrentActivity());
+		
+		List<SelectorMatch> matches = mViewSearcher.getMatches(SelectorGroup.compile(selectorGroup), 1);
+		
+		return (matches.isEmpty() ? null : matches.get(0));
+	}
+	
+	public void enterText(String selector, String text) {
+		Tracer.begin("Hadaly.enterText");
+		try {
+			View view = attemptGetView(selector);
+			if (view != null)
+				Actions.enterTextAction(text, mIdleSynchronizer).doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+			
+			settle();
+			
+			record(Script.Command.ENTER_TEXT, selector, text);
+		} finally {
+			Tracer.end();
+		}
 	}
 	
 	public void waitForNewActivityToShow() {
 		mActivityWatcher.waitForNewActivity();
 	}
 	
+	/**
+	 * Waits until an activity of the class is showing, e.g. after a tap which starts it.
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return The activity
+	 */
+	public <T extends Activity> T waitForActivity(Class<T> activityClass, int timeout) {
+		T activity = mActivityWatcher.waitForActivity(activityClass, timeout);
+		
+		Assert.assertNotNull("Timed out waiting for " + activityClass.getSimpleName(), activity);
+		
+		mViewSearcher.setActivity(activity);
+		
+		return activity;
+	}
+	
 	public void sleep(int time) {
+		Tracer.begin("Hadaly.sleep");
 		try {
 			Thread.sleep(time);
 			
+			// a replay waits for the app instead of the clock
+			record(Script.Command.WAIT_FOR_IDLE);
+			
 		} catch (Exception e) {
 			e.printStackTrace();
 			Assert.fail(e.getMessage());
+		} finally {
+			Tracer.end();
 		}
 	}
 	
@@ -194,7 +516,61 @@ public class Hadaly {
 	}
 	
 	public void tearDown() {
+		if (mAsync != null) mAsync.shutdown();
+		
+		mViewSearcher.release();
 		mActivityWatcher.tearDown(); // ensure no memory leaks
+		
+		if (Tracer.isEnabled()) writeTrace();
+		if (mDurationHistory != null) recordDuration();
+	}
+	
+	/**
+	 * Record where each step spends its time (selector parsing, traversal, UI thread
+	 * hops, JS round trips, touches, idle waits). The trace is written as Chrome trace 
+	 * event JSON during {@link #tearDown()}, one file per test, and opens in 
+	 * chrome://tracing or Perfetto.
+	 * @param tracing Whether to record a trace
+	 */
+	public void setTracing(boolean tracing) {
+		Tracer.setEnabled(tracing);
+	}
+	
+	/**
+	 * @param directory Where traces are written (defaults to '/sdcard/Hadaly-Traces/')
+	 */
+	public void setTraceDirectory(File directory) {
+		mTraceDirectory = directory;
+	}
+	
+	private void writeTrace() {
+		String test = mTestCase.getClass().getSimpleName() + "." + mTestCase.getName();
+		
+		Tracer.write(new File(mTraceDirectory, test + ".json"));
+		Tracer.clear(); // start fresh for the next test
+	}
+	
+	/**
+	 * Add how long each test took (from creating Hadaly to {@link #tearDown()}) to a
+	 * history file, which {@link com.samstewart.hadaly.sharding.ShardPlanner} uses to
+	 * split the suite into shards that finish at the same time. Pull the file off the
+	 * device after a run and keep it with the build.
+	 * @param history The history file, or null to stop recording (the default)
+	 */
+	public void setDurationHistory(File history) {
+		mDurationHistory = history;
+	}
+	
+	private void recordDuration() {
+		String test = mTestCase.getClass().getName() + "#" + mTestCase.getName();
+		
+		try {
+			TestDurations durations = TestDurations.load(mDurationHistory);
+			durations.record(test, SystemClock.uptimeMillis() - mStartTime);
+			durations.save(mDurationHistory);
+		} catch (IOException e) {
+			Log.d(LOGGING_TAG, "Can't record the duration in " + mDurationHistory + ": " + e.getMessage());
+		}
 	}
 	
 }
@@ -0,0 +1,306 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+/**
+ * The result of an {@link AsyncHadaly} step. Completed by whoever finishes the work
+ * (a UI thread callback, the JS bridge, the action executor), listeners run on the
+ * completing thread unless they ask for an executor.
+ *
+ * Steps compose with {@link #then(Transform, Executor)} and {@link #chain(Chain)},
+ * independent steps can be joined with {@link #all(HadalyFuture...)}. Tests usually
+ * end a chain with {@link #await(long)} which turns failures into assertion failures.
+ * @author samstewart
+ *
+ */
+public class HadalyFuture<T> implements Future<T> {
+
+	public interface Listener<T> {
+		void onComplete(HadalyFuture<T> future);
+	}
+
+	/** Maps a result to a new value. */
+	public interface Transform<T, R> {
+		R apply(T value) throws Exception;
+	}
+
+	/** Maps a result to the next asynchronous step. */
+	public interface Chain<T, R> {
+		HadalyFuture<R> apply(T value) throws Exception;
+	}
+
+	private boolean mDone;
+
+	private boolean mCancelled;
+
+	private T mValue;
+
+	private Throwable mFailure;
+
+	private List<Listener<T>> mListeners = new ArrayList<Listener<T>>(2);
+
+	// ExecutionException's constructors are protected on older platforms
+	private static class StepFailedException extends ExecutionException {
+		private static final long serialVersionUID = 1L;
+
+		StepFailedException(Throwable cause) {
+			super(cause);
+		}
+	}
+
+	public static <T> HadalyFuture<T> completed(T value) {
+		HadalyFuture<T> future = new HadalyFuture<T>();
+		future.complete(value);
+		return future;
+	}
+
+	public static <T> HadalyFuture<T> failed(Throwable failure) {
+		HadalyFuture<T> future = new HadalyFuture<T>();
+		future.fail(failure);
+		return future;
+	}
+
+	/**
+	 * @return A future which completes once all the given ones have, or fails with the first failure
+	 */
+	public static HadalyFuture<Void> all(HadalyFuture<?>... futures) {
+		final HadalyFuture<Void> all = new HadalyFuture<Void>();
+		final AtomicInteger pending = new AtomicInteger(futures.length);
+
+		if (futures.length == 0) all.complete(null);
+
+		for (HadalyFuture<?> future : futures) {
+			addAnyListener(future, all, pending);
+		}
+
+		return all;
+	}
+
+	private static <T> void addAnyListener(HadalyFuture<T> future, final HadalyFuture<Void> all, final AtomicInteger pending) {
+		future.addListener(new Listener<T>() {
+			@Override
+			public void onComplete(HadalyFuture<T> done) {
+				if (done.getFailure() != null)
+					all.fail(done.getFailure());
+				else if (pending.decrementAndGet() == 0)
+					all.complete(null);
+			}
+		});
+	}
+
+	/**
+	 * @return false if the future was already done
+	 */
+	public boolean complete(T value) {
+		return finish(value, null, false);
+	}
+
+	/**
+	 * @return false if the future was already done
+	 */
+	public boolean fail(Throwable failure) {
+		return finish(null, failure, false);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException(), true);
+	}
+
+	private boolean finish(T value, Throwable failure, boolean cancelled) {
+		List<Listener<T>> listeners;
+
+		synchronized (this) {
+			if (mDone) return false;
+
+			mDone = true;
+			mValue = value;
+			mFailure = failure;
+			mCancelled = cancelled;
+
+			listeners = mListeners;
+			mListeners = null;
+
+			notifyAll();
+		}
+
+		for (Listener<T> listener : listeners) listener.onComplete(this);
+
+		return true;
+	}
+
+	/**
+	 * Runs the listener once the future is done, right away if it already is.
+	 */
+	public HadalyFuture<T> addListener(Listener<T> listener) {
+		synchronized (this) {
+			if ( ! mDone) {
+				mListeners.add(listener);
+				return this;
+			}
+		}
+
+		listener.onComplete(this);
+		return this;
+	}
+
+	/**
+	 * @param transform Maps the result once we have it
+	 * @param executor Where to run the transform (null to run it on the completing thread)
+	 * @return The transformed result; failures are passed along untouched, the result
+	 * fails if the executor no longer takes work
+	 */
+	public <R> HadalyFuture<R> then(final Transform<? super T, R> transform, final Executor executor) {
+		final HadalyFuture<R> next = new HadalyFuture<R>();
+
+		addListener(new Listener<T>() {
+			@Override
+			public void onComplete(final HadalyFuture<T> done) {
+				if (done.getFailure() != null) {
+					next.fail(done.getFailure());
+					return;
+				}
+
+				Runnable apply = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							next.complete(transform.apply(done.mValue));
+						} catch (Throwable t) {
+							next.fail(t);
+						}
+					}
+				};
+
+				if (executor == null) {
+					apply.run();
+					return;
+				}
+
+				// never throw into whoever completed us, that may be the app's main looper
+				try {
+					executor.execute(apply);
+				} catch (RejectedExecutionException e) {
+					next.fail(e);
+				}
+			}
+		});
+
+		return next;
+	}
+
+	/**
+	 * @param chain Starts the next step once we have the result
+	 * @return The result of the next step; failures are passed along untouched
+	 */
+	public <R> HadalyFuture<R> chain(final Chain<? super T, R> chain) {
+		final HadalyFuture<R> next = new HadalyFuture<R>();
+
+		addListener(new Listener<T>() {
+			@Override
+			public void onComplete(HadalyFuture<T> done) {
+				if (done.getFailure() != null) {
+					next.fail(done.getFailure());
+					return;
+				}
+
+				try {
+					chain.apply(done.mValue).addListener(new Listener<R>() {
+						@Override
+						public void onComplete(HadalyFuture<R> result) {
+							if (result.getFailure() != null)
+								next.fail(result.getFailure());
+							else
+								next.complete(result.mValue);
+						}
+					});
+				} catch (Throwable t) {
+					next.fail(t);
+				}
+			}
+		});
+
+		return next;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/** @return Why the future failed or null if it hasn't (yet) */
+	public synchronized Throwable getFailure() {
+		return mFailure;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while ( ! mDone) wait();
+
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while ( ! mDone) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) throw new TimeoutException();
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return getResult();
+	}
+
+	/**
+	 * Blocks the test until the future is done, failing the test if it failed or didn't
+	 * complete in time.
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return The result
+	 */
+	public T await(long timeout) {
+		try {
+			return get(timeout, TimeUnit.MILLISECONDS);
+
+		} catch (TimeoutException e) {
+			Assert.fail("Timed out after " + timeout + "ms");
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) throw (Error)e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+
+			Assert.fail(String.valueOf(e.getCause()));
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Assert.fail("Interrupted");
+		}
+
+		return null; // never reached
+	}
+
+	private T getResult() throws ExecutionException {
+		if (mCancelled) throw new CancellationException();
+		if (mFailure != null) throw new StepFailedException(mFailure);
+
+		return mValue;
+	}
+}
@@ -0,0 +1,393 @@
+package com.samstewart.hadaly;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Set;
+
+import android.content.res.Resources;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Compact copy of the view hierarchy taken on the UI thread so selectors can be
+ * matched on the instrumentation thread without touching live views while the
+ * UI mutates them.
+ *
+ * Nodes are stored in document (pre-order) order as flat, parallel arrays:
+ * class, id, tag, text, contentDescription, visibility, screen bounds and the
+ * index of the parent node. Matches are mapped back to views through weak
+ * references so holding on to a snapshot never pins an activity.
+ *
+ * The arrays are reused between captures and only grow, and the weak reference
+ * of a node is reused if the same view sits at the same index as last time, so
+ * re-capturing a stable hierarchy allocates little beyond the copied strings.
+ *
+ * A capture can prune subtrees which can't be on screen (not VISIBLE, or clipped
+ * away entirely by their ancestors) so every captured node is known to be shown.
+ *
+ * {@link #capture(View, Set)} must run on the UI thread, everything else may run
+ * on any thread once the capture is done.
+ * @author samstewart
+ *
+ */
+class HierarchySnapshot {
+
+	public static final int NO_PARENT = -1;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private int 			mSize;
+
+	private Class<?>[] 		mClasses 	 		= new Class<?>[INITIAL_CAPACITY];
+
+	private int[] 			mIds 		 		= new int[INITIAL_CAPACITY];
+
+	private Object[] 		mTags 		 		= new Object[INITIAL_CAPACITY];
+
+	// null for views which aren't TextViews
+	private String[] 		mTexts 		 		= new String[INITIAL_CAPACITY];
+
+	private String[] 		mContentDescriptions = new String[INITIAL_CAPACITY];
+
+	private int[] 			mVisibilities 		= new int[INITIAL_CAPACITY];
+
+	// left, top, right, bottom in screen coordinates
+	private int[] 			mBounds 	 		= new int[INITIAL_CAPACITY * 4];
+
+	private int[] 			mParents 	 		= new int[INITIAL_CAPACITY];
+
+	// one past the last node of each node's subtree (nodes are in pre-order)
+	private int[] 			mSubtreeEnds 		= new int[INITIAL_CAPACITY];
+
+	private WeakReference<View>[] mViews 		= newReferenceArray(INITIAL_CAPACITY);
+
+	// property name -> value per node for attributes read through accessors
+	private final HashMap<String, Object[]> mProperties = new HashMap<String, Object[]>();
+
+	private Resources 		mResources;
+
+	private String 			mPackageName;
+
+	// properties copied by the current capture, flattened so the walk doesn't allocate iterators
+	private String[] 		mCaptureProperties 	= new String[4];
+
+	private int 			mCapturePropertyCount;
+
+	// scratch space for the capture walk
+	private View[] 			mStack 		 		= new View[INITIAL_CAPACITY];
+
+	private int[] 			mStackParents 		= new int[INITIAL_CAPACITY];
+
+	private final int[] 	mLocation 	 		= new int[2];
+
+	// screen bounds of the view being added and, when pruning clipped views, the visible rect per node
+	private final int[] 	mNextBounds 		= new int[4];
+
+	private int[] 			mClips 				= new int[INITIAL_CAPACITY * 4];
+
+	/**
+	 * Copies the hierarchy below root. Must be called on the UI thread.
+	 * @param root The view to start from
+	 * @param properties Extra accessor based attributes to copy ('enabled', 'hint')
+	 */
+	public void capture(View root, Set<String> properties) {
+		capture(root, properties, false, false);
+	}
+
+	/**
+	 * Copies the hierarchy below root, leaving out subtrees which can't be on screen.
+	 * Must be called on the UI thread.
+	 * @param root The view to start from
+	 * @param properties Extra accessor based attributes to copy ('enabled', 'hint')
+	 * @param pruneInvisible Leave out views which aren't {@link View#VISIBLE} and their subtrees
+	 * @param pruneClipped Leave out views clipped away entirely by their ancestors and their subtrees
+	 */
+	public void capture(View root, Set<String> properties, boolean pruneInvisible, boolean pruneClipped) {
+		clearNodes();
+
+		mResources = root.getResources();
+		mPackageName = root.getContext().getPackageName();
+
+		mCapturePropertyCount = 0;
+
+		if ( ! properties.isEmpty()) {
+			if (properties.size() > mCaptureProperties.length)
+				mCaptureProperties = new String[properties.size()];
+
+			for (String property : properties) {
+				if ( ! mProperties.containsKey(property)) mProperties.put(property, new Object[mIds.length]);
+
+				mCaptureProperties[mCapturePropertyCount++] = property;
+			}
+		}
+
+		int stackSize = 0;
+		mStack[stackSize] = root;
+		mStackParents[stackSize] = NO_PARENT;
+		stackSize++;
+
+		while (stackSize > 0) {
+			stackSize--;
+
+			View view = mStack[stackSize];
+			int parent = mStackParents[stackSize];
+			mStack[stackSize] = null;
+
+			if (pruneInvisible && view.getVisibility() != View.VISIBLE) continue;
+
+			computeBounds(view, parent);
+
+			if (pruneClipped && isClipped(parent)) continue;
+
+			int node = add(view, parent);
+
+			if (view instanceof ViewGroup) {
+				ViewGroup group = (ViewGroup)view;
+				int childCount = group.getChildCount();
+
+				if (stackSize + childCount > mStack.length) growStack(stackSize + childCount);
+
+				// push in reverse so we pop them in document order
+				for (int i = childCount - 1; i >= 0; i--) {
+					mStack[stackSize] = group.getChildAt(i);
+					mStackParents[stackSize] = node;
+					stackSize++;
+				}
+			}
+		}
+
+		// every subtree ends where its last descendant's subtree ends
+		for (int node = 0; node < mSize; node++) mSubtreeEnds[node] = node + 1;
+
+		for (int node = mSize - 1; node > 0; node--) {
+			int parent = mParents[node];
+			if (mSubtreeEnds[node] > mSubtreeEnds[parent]) mSubtreeEnds[parent] = mSubtreeEnds[node];
+		}
+	}
+
+	/**
+	 * Intersects the bounds just computed with the parent's visible rect and stores
+	 * the result for the node about to be added.
+	 * @return true if nothing of the view is visible
+	 */
+	private boolean isClipped(int parent) {
+		int left = mNextBounds[0], top = mNextBounds[1], right = mNextBounds[2], bottom = mNextBounds[3];
+
+		if (parent != NO_PARENT) {
+			left 	= Math.max(left, mClips[parent * 4]);
+			top 	= Math.max(top, mClips[parent * 4 + 1]);
+			right 	= Math.min(right, mClips[parent * 4 + 2]);
+			bottom 	= Math.min(bottom, mClips[parent * 4 + 3]);
+		}
+
+		if (left >= right || top >= bottom) return true;
+
+		if (mSize == mIds.length) grow();
+
+		int clip = mSize * 4;
+		mClips[clip] 	 = left;
+		mClips[clip + 1] = top;
+		mClips[clip + 2] = right;
+		mClips[clip + 3] = bottom;
+
+		return false;
+	}
+
+	private void computeBounds(View view, int parent) {
+		// derive screen bounds from the parent instead of calling getLocationOnScreen for every view
+		int left, top;
+		if (parent == NO_PARENT) {
+			view.getLocationOnScreen(mLocation);
+			left = mLocation[0];
+			top = mLocation[1];
+		} else {
+			View parentView = mViews[parent].get();
+			int scrollX = (parentView != null ? parentView.getScrollX() : 0);
+			int scrollY = (parentView != null ? parentView.getScrollY() : 0);
+
+			left = mBounds[parent * 4] + view.getLeft() - scrollX;
+			top = mBounds[parent * 4 + 1] + view.getTop() - scrollY;
+		}
+
+		mNextBounds[0] = left;
+		mNextBounds[1] = top;
+		mNextBounds[2] = left + view.getWidth();
+		mNextBounds[3] = top + view.getHeight();
+	}
+
+	private int add(View view, int parent) {
+		if (mSize == mIds.length) grow();
+
+		int node = mSize++;
+
+		mClasses[node] = view.getClass();
+		mIds[node] = view.getId();
+		mTags[node] = view.getTag();
+		mTexts[node] = (view instanceof TextView ? ((TextView)view).getText().toString() : null);
+
+		CharSequence description = view.getContentDescription();
+		mContentDescriptions[node] = (description != null ? description.toString() : null);
+
+		mVisibilities[node] = view.getVisibility();
+		mParents[node] = parent;
+
+		System.arraycopy(mNextBounds, 0, mBounds, node * 4, 4);
+
+		if (mViews[node] == null || mViews[node].get() != view)
+			mViews[node] = new WeakReference<View>(view);
+
+		for (int i = 0; i < mCapturePropertyCount; i++)
+			mProperties.get(mCaptureProperties[i])[node] = AttributeAccessors.getValue(view, mCaptureProperties[i]);
+
+		return node;
+	}
+
+	///////////////////////////////////////////////
+	//////////  Accessors /////////////////////////
+
+	public int size() {
+		return mSize;
+	}
+
+	public Class<?> getViewClass(int node) {
+		return mClasses[node];
+	}
+
+	public int getId(int node) {
+		return mIds[node];
+	}
+
+	public Object getTag(int node) {
+		return mTags[node];
+	}
+
+	/** @return The text or null if the node isn't a TextView */
+	public String getText(int node) {
+		return mTexts[node];
+	}
+
+	public String getContentDescription(int node) {
+		return mContentDescriptions[node];
+	}
+
+	public int getVisibility(int node) {
+		return mVisibilities[node];
+	}
+
+	public int getLeft(int node) {
+		return mBounds[node * 4];
+	}
+
+	public int getTop(int node) {
+		return mBounds[node * 4 + 1];
+	}
+
+	public int getRight(int node) {
+		return mBounds[node * 4 + 2];
+	}
+
+	public int getBottom(int node) {
+		return mBounds[node * 4 + 3];
+	}
+
+	/** @return The parent's node index or {@link #NO_PARENT} for the root */
+	public int getParent(int node) {
+		return mParents[node];
+	}
+
+	/** @return One past the index of the last node in the node's subtree */
+	public int getSubtreeEnd(int node) {
+		return mSubtreeEnds[node];
+	}
+
+	/**
+	 * @return The value captured for the property or {@link AttributeAccessors#NO_PROPERTY}
+	 * if the view has no such property (or it wasn't captured)
+	 */
+	public Object getProperty(int node, String property) {
+		Object[] values = mProperties.get(property);
+
+		return (values != null ? values[node] : AttributeAccessors.NO_PROPERTY);
+	}
+
+	/** @return The live view for the node or null if it has been garbage collected */
+	public View getView(int node) {
+		WeakReference<View> reference = mViews[node];
+
+		return (reference != null ? reference.get() : null);
+	}
+
+	/** @return The root's resources, null if nothing was captured */
+	public Resources getResources() {
+		return mResources;
+	}
+
+	/** @return The root's package, ids are resolved in it */
+	public String getPackageName() {
+		return mPackageName;
+	}
+
+	/**
+	 * Drops the captured values (but keeps the arrays and weak references around for reuse).
+	 */
+	public void clear() {
+		clearNodes();
+	}
+
+	private void clearNodes() {
+		for (int i = 0; i < mSize; i++) {
+			mTags[i] = null;
+			mTexts[i] = null;
+			mContentDescriptions[i] = null;
+		}
+
+		for (Object[] values : mProperties.values())
+			for (int i = 0; i < mSize && i < values.length; i++) values[i] = null;
+
+		mSize = 0;
+		mResources = null;
+	}
+
+	private void grow() {
+		int capacity = mIds.length * 2;
+
+		mClasses 			 = copy(mClasses, new Class<?>[capacity]);
+		mIds 				 = copy(mIds, new int[capacity]);
+		mTags 				 = copy(mTags, new Object[capacity]);
+		mTexts 				 = copy(mTexts, new String[capacity]);
+		mContentDescriptions = copy(mContentDescriptions, new String[capacity]);
+		mVisibilities 		 = copy(mVisibilities, new int[capacity]);
+		mBounds 			 = copy(mBounds, new int[capacity * 4]);
+		mClips 				 = copy(mClips, new int[capacity * 4]);
+		mParents 			 = copy(mParents, new int[capacity]);
+		mSubtreeEnds 		 = copy(mSubtreeEnds, new int[capacity]);
+		mViews 				 = copy(mViews, HierarchySnapshot.<View>newReferenceArray(capacity));
+
+		for (String property : mProperties.keySet())
+			mProperties.put(property, copy(mProperties.get(property), new Object[capacity]));
+	}
+
+	private void growStack(int needed) {
+		int capacity = mStack.length;
+		while (capacity < needed) capacity *= 2;
+
+		mStack = copy(mStack, new View[capacity]);
+		mStackParents = copy(mStackParents, new int[capacity]);
+	}
+
+	private static <T> T[] copy(T[] from, T[] to) {
+		System.arraycopy(from, 0, to, 0, Math.min(from.length, to.length));
+		return to;
+	}
+
+	private static int[] copy(int[] from, int[] to) {
+		System.arraycopy(from, 0, to, 0, Math.min(from.length, to.length));
+		return to;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> WeakReference<T>[] newReferenceArray(int capacity) {
+		return (WeakReference<T>[])new WeakReference<?>[capacity];
+	}
+}
@@ -0,0 +1,317 @@
+package com.samstewart.hadaly;
+
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+/**
+ * Reusable pre-order (document order) traversal of a view hierarchy which
+ * also verifies the ancestor part of hierarchical selectors.
+ *
+ * Everything lives in growable arrays owned by the walker so once the arrays
+ * have grown to fit the hierarchy a query doesn't allocate at all. Owned by a
+ * single {@link ViewFetcher}; not thread safe.
+ *
+ * Ancestors are verified right to left: a view is only checked against the
+ * last compound and only candidates that pass look at their ancestors. The
+ * walker keeps the path from the root to the current view and memoizes, per
+ * path entry, how many leading compounds that view and its ancestors match.
+ * Compounds are joined by the descendant combinator so greedily matching the
+ * outermost ancestor first is always correct. Every view is checked at most
+ * once per query no matter how many candidates share it as an ancestor.
+ *
+ * The walk can optionally prune subtrees which can't be on screen: views that
+ * aren't VISIBLE and, if asked, views whose visible rect is empty. Visibility and
+ * the clip rect are carried down the path so every view the walk returns is known
+ * to be shown without walking back up like {@link View#isShown()} does.
+ * @author samstewart
+ *
+ */
+class HierarchyWalker {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// pending views and their depth
+	private View[] 	mStack 		= new View[INITIAL_CAPACITY];
+
+	private int[] 	mStackDepth = new int[INITIAL_CAPACITY];
+
+	private int 	mStackSize;
+
+	// high water mark so clear() only touches the slots we actually used
+	private int 	mStackUsed;
+
+	// mPath[d] is the ancestor at depth d of the current view (or the view itself)
+	private View[] 	mPath 		= new View[INITIAL_CAPACITY];
+
+	private int 	mPathUsed;
+
+	private int 	mDepth;
+
+	// mMatched[alternative][d] leading compounds matched by mPath[0..d],
+	// valid for every depth below mValid[alternative]
+	private int[][] mMatched 	= new int[1][INITIAL_CAPACITY];
+
+	private int[] 	mValid 		= new int[1];
+
+	private int 	mAlternatives;
+
+	private boolean mPruneInvisible;
+
+	private boolean mPruneClipped;
+
+	// per depth: origin (x, y) and visible rect (left, top, right, bottom) relative to the root,
+	// only maintained while pruning clipped views
+	private int[] 	mOrigins 	= new int[INITIAL_CAPACITY * 2];
+
+	private int[] 	mClips 		= new int[INITIAL_CAPACITY * 4];
+
+	/**
+	 * @param pruneInvisible Skip views (and their subtrees) which aren't {@link View#VISIBLE}
+	 */
+	public void setPruneInvisible(boolean pruneInvisible) {
+		mPruneInvisible = pruneInvisible;
+	}
+
+	public boolean isPruneInvisible() {
+		return mPruneInvisible;
+	}
+
+	/**
+	 * @param pruneClipped Skip views (and their subtrees) which are clipped away entirely
+	 * by their ancestors or have no size. Assumes children are clipped to their parent,
+	 * which is the default.
+	 */
+	public void setPruneClipped(boolean pruneClipped) {
+		mPruneClipped = pruneClipped;
+	}
+
+	public boolean isPruneClipped() {
+		return mPruneClipped;
+	}
+
+	/**
+	 * Starts a new walk.
+	 * @param root The view to start from, ancestors above it are ignored
+	 * @param alternatives The number of selectors verified during this walk
+	 */
+	public void reset(View root, int alternatives) {
+		clear();
+
+		if (alternatives > mMatched.length) {
+			mMatched = new int[alternatives][mPath.length];
+			mValid = new int[alternatives];
+		}
+
+		mAlternatives = alternatives;
+
+		for (int i = 0; i < alternatives; i++) mValid[i] = 0;
+
+		push(root, 0);
+	}
+
+	/**
+	 * @return The next view in document order or null once the walk is done.
+	 * The caller decides whether to descend via {@link #pushChildren(View)}.
+	 */
+	public View next() {
+		View view;
+		int depth;
+
+		do {
+			if (mStackSize == 0) return null;
+
+			mStackSize--;
+
+			view = mStack[mStackSize];
+			depth = mStackDepth[mStackSize];
+
+			mStack[mStackSize] = null;
+
+			// our parent is mPath[depth - 1] since we are walking in pre-order
+		} while (isPruned(view, depth));
+
+		if (depth == mPath.length) growPath();
+
+		mPath[depth] = view;
+		if (depth >= mPathUsed) mPathUsed = depth + 1;
+
+		mDepth = depth;
+
+		// anything memoized at this depth or below belonged to a previous sibling's subtree
+		for (int i = 0; i < mAlternatives; i++)
+			if (mValid[i] > depth) mValid[i] = depth;
+
+		return view;
+	}
+
+	public void pushChildren(View view) {
+		if ( ! (view instanceof ViewGroup)) return;
+
+		ViewGroup group = (ViewGroup)view;
+
+		// push in reverse so we pop them in document order
+		for (int i = group.getChildCount() - 1; i >= 0; i--)
+			push(group.getChildAt(i), mDepth + 1);
+	}
+
+	private boolean isPruned(View view, int depth) {
+		if (mPruneInvisible && view.getVisibility() != View.VISIBLE) return true;
+
+		if ( ! mPruneClipped) return false;
+
+		if (depth == mPath.length) growPath();
+
+		int left, top, right, bottom;
+
+		if (depth == 0) {
+			left = 0;
+			top = 0;
+			right = view.getWidth();
+			bottom = view.getHeight();
+
+			mOrigins[0] = 0;
+			mOrigins[1] = 0;
+		} else {
+			View parent = mPath[depth - 1];
+
+			int x = mOrigins[(depth - 1) * 2] + view.getLeft() - parent.getScrollX();
+			int y = mOrigins[(depth - 1) * 2 + 1] + view.getTop() - parent.getScrollY();
+
+			mOrigins[depth * 2] = x;
+			mOrigins[depth * 2 + 1] = y;
+
+			int clip = (depth - 1) * 4;
+
+			left 	= Math.max(x, mClips[clip]);
+			top 	= Math.max(y, mClips[clip + 1]);
+			right 	= Math.min(x + view.getWidth(), mClips[clip + 2]);
+			bottom 	= Math.min(y + view.getHeight(), mClips[clip + 3]);
+		}
+
+		if (left >= right || top >= bottom) return true;
+
+		int clip = depth * 4;
+
+		mClips[clip] 	 = left;
+		mClips[clip + 1] = top;
+		mClips[clip + 2] = right;
+		mClips[clip + 3] = bottom;
+
+		return false;
+	}
+
+	/** @return Depth of the view last returned by {@link #next()} (root is 0) */
+	public int getDepth() {
+		return mDepth;
+	}
+
+	/**
+	 * @param compounds The selector compounds (see {@link Selector#getCompounds()})
+	 * @param alternative Which memo to use (0 unless walking a {@link SelectorGroup})
+	 * @return true if the ancestors of the current view match everything but the last compound
+	 */
+	public boolean ancestorsMatch(Selector[] compounds, int alternative) {
+		int last = compounds.length - 1;
+
+		if (last == 0) return true; // no ancestors to check
+		if (mDepth == 0) return false; // no ancestors at all
+
+		int parentDepth = mDepth - 1;
+		int[] matched = mMatched[alternative];
+
+		// fill in the memo from where it was last valid down to our parent
+		for (int d = mValid[alternative]; d <= parentDepth; d++) {
+			int prefix = (d == 0 ? 0 : matched[d - 1]);
+
+			if (prefix < last && compounds[prefix].getMatcher().matches(mPath[d]))
+				prefix++;
+
+			matched[d] = prefix;
+		}
+
+		if (mValid[alternative] <= parentDepth) mValid[alternative] = parentDepth + 1;
+
+		return matched[parentDepth] == last;
+	}
+
+	/**
+	 * Verifies a single view outside of a walk by following getParent(). Each ancestor
+	 * is checked against the compound right before the last one still unmatched, walking
+	 * outwards, which is correct for the descendant combinator and never looks at an 
+	 * ancestor twice.
+	 * @param compounds The selector compounds (see {@link Selector#getCompounds()})
+	 * @param view The view to verify
+	 * @param root Ancestors above the root are ignored
+	 * @return true if the view matches the full selector
+	 */
+	public static boolean matches(Selector[] compounds, View view, View root) {
+		int remaining = compounds.length - 1;
+
+		if ( ! compounds[remaining].getMatcher().matches(view)) return false;
+
+		for (View cur = getParent(view, root); cur != null && remaining > 0; cur = getParent(cur, root))
+			if (compounds[remaining - 1].getMatcher().matches(cur)) remaining--;
+
+		return remaining == 0;
+	}
+
+	private static View getParent(View view, View root) {
+		if (view == root) return null;
+
+		ViewParent parent = view.getParent();
+
+		return (parent instanceof View ? (View)parent : null);
+	}
+
+	/**
+	 * Drops every view reference so we don't keep a finished activity alive.
+	 */
+	public void clear() {
+		for (int i = 0; i < mStackUsed; i++) mStack[i] = null;
+		for (int i = 0; i < mPathUsed; i++) mPath[i] = null;
+
+		mStackSize = 0;
+		mStackUsed = 0;
+		mPathUsed = 0;
+		mDepth = 0;
+	}
+
+	private void push(View view, int depth) {
+		if (mStackSize == mStack.length) {
+			View[] stack = new View[mStack.length * 2];
+			System.arraycopy(mStack, 0, stack, 0, mStackSize);
+			mStack = stack;
+
+			int[] stackDepth = new int[mStackDepth.length * 2];
+			System.arraycopy(mStackDepth, 0, stackDepth, 0, mStackSize);
+			mStackDepth = stackDepth;
+		}
+
+		mStack[mStackSize] = view;
+		mStackDepth[mStackSize] = depth;
+		mStackSize++;
+
+		if (mStackSize > mStackUsed) mStackUsed = mStackSize;
+	}
+
+	private void growPath() {
+		View[] path = new View[mPath.length * 2];
+		System.arraycopy(mPath, 0, path, 0, mPath.length);
+		mPath = path;
+
+		int[] origins = new int[path.length * 2];
+		System.arraycopy(mOrigins, 0, origins, 0, mOrigins.length);
+		mOrigins = origins;
+
+		int[] clips = new int[path.length * 4];
+		System.arraycopy(mClips, 0, clips, 0, mClips.length);
+		mClips = clips;
+
+		for (int i = 0; i < mMatched.length; i++) {
+			int[] matched = new int[path.length];
+			System.arraycopy(mMatched[i], 0, matched, 0, mMatched[i].length);
+			mMatched[i] = matched;
+		}
+	}
+}
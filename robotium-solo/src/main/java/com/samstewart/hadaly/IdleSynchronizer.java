@@ -0,0 +1,279 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.app.Instrumentation;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.animation.Animation;
+
+/**
+ * Waits until the app has settled instead of sleeping for a fixed time: the main
+ * looper's queue has run dry, no view animation is running and no layout is pending.
+ *
+ * The check runs from a {@link MessageQueue.IdleHandler} on the UI thread, so it only
+ * happens once the queue is idle. If the hierarchy isn't quiet yet the check is
+ * re-armed a frame later; animations and layouts post to the queue themselves, so
+ * we're woken up as soon as they have run. Unlike
+ * {@link Instrumentation#waitForIdleSync()} every wait has a timeout, so a queue
+ * that never goes idle (a looping animation, a spinner) can't hang a test.
+ * @author samstewart
+ *
+ */
+public class IdleSynchronizer {
+
+	public static final int DEFAULT_TIMEOUT = 10000;
+
+	// how long to wait before re-checking a hierarchy which wasn't quiet yet
+	private static final int RECHECK_DELAY = 16;
+
+	/**
+	 * An extra condition the app has to meet before it counts as idle, e.g. a page
+	 * being loaded. Checked on the UI thread.
+	 */
+	public interface Condition {
+		boolean isSatisfied();
+	}
+
+	/**
+	 * Notified on the UI thread once an asynchronous wait is over.
+	 */
+	public interface Callback {
+		void onIdle(boolean idle);
+	}
+
+	private final Handler mMainHandler;
+
+	// scratch stack for checking the hierarchy, only used on the UI thread
+	private final ArrayList<View> mStack = new ArrayList<View>();
+
+	private int mTimeout = DEFAULT_TIMEOUT;
+
+	public IdleSynchronizer() {
+		mMainHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * @param timeout The longest any wait may take in milliseconds
+	 */
+	public void setTimeout(int timeout) {
+		mTimeout = timeout;
+	}
+
+	public int getTimeout() {
+		return mTimeout;
+	}
+
+	/**
+	 * Waits (up to the default timeout) until the main queue is idle.
+	 * @return false if we timed out
+	 */
+	public boolean waitForIdle() {
+		return waitForIdle(Collections.<View>emptyList(), null, mTimeout);
+	}
+
+	/**
+	 * Waits (up to the default timeout) until the main queue is idle and nothing
+	 * below the root is animating or waiting for a layout.
+	 * @return false if we timed out
+	 */
+	public boolean waitForIdle(View root) {
+		return waitForIdle(root != null ? Collections.singletonList(root) : Collections.<View>emptyList(), null, mTimeout);
+	}
+
+	/**
+	 * Waits (up to the default timeout) until the main queue is idle and nothing
+	 * in any of the windows is animating or waiting for a layout.
+	 * @return false if we timed out
+	 */
+	public boolean waitForIdle(List<View> roots) {
+		return waitForIdle(roots, null, mTimeout);
+	}
+
+	/**
+	 * @param roots The hierarchies which have to be quiet
+	 * @param condition Extra condition to meet or null
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return false if we timed out
+	 */
+	public boolean waitForIdle(List<View> roots, Condition condition, long timeout) {
+		// we'd be waiting for ourselves
+		if (Looper.myLooper() == Looper.getMainLooper()) return true;
+
+		Tracer.begin("idle.wait");
+		try {
+			IdleCheck check = new IdleCheck(roots, condition);
+
+			mMainHandler.post(check);
+
+			return check.await(timeout);
+		} finally {
+			Tracer.end();
+		}
+	}
+
+	/**
+	 * Same as {@link #waitForIdle(List, Condition, long)} without blocking the caller.
+	 * @param callback Notified on the UI thread with false if we timed out
+	 */
+	public void waitForIdle(List<View> roots, Condition condition, long timeout, Callback callback) {
+		final IdleCheck check = new IdleCheck(roots, condition, callback);
+
+		mMainHandler.post(check);
+		mMainHandler.postDelayed(check.mTimeout, timeout);
+	}
+
+	/**
+	 * Must be called on the UI thread.
+	 * @return true if no visible view below the roots is animating or needs a layout
+	 */
+	private boolean isQuiet(List<View> roots) {
+		long now = SystemClock.uptimeMillis();
+
+		try {
+			for (View root : roots) {
+				mStack.add(root);
+
+				while ( ! mStack.isEmpty()) {
+					View view = mStack.remove(mStack.size() - 1);
+
+					// hidden views are never laid out, their flag would never clear
+					if (view.getVisibility() != View.VISIBLE) continue;
+
+					if (view.isLayoutRequested()) return false;
+
+					Animation animation = view.getAnimation();
+					if (animation != null && animation.hasStarted() && ! animation.hasEnded()) {
+						// animations with a start offset haven't really started yet
+						if (animation.getStartTime() == Animation.START_ON_FIRST_FRAME ||
+							animation.getStartTime() + animation.getStartOffset() <= now)
+							return false;
+					}
+
+					if (view instanceof ViewGroup) {
+						ViewGroup group = (ViewGroup)view;
+
+						for (int i = group.getChildCount() - 1; i >= 0; i--)
+							mStack.add(group.getChildAt(i));
+					}
+				}
+			}
+
+			return true;
+
+		} finally {
+			mStack.clear();
+		}
+	}
+
+	/**
+	 * A single wait. Posted to the UI thread where it installs itself as an idle
+	 * handler; the waiting thread blocks on it until it signals.
+	 */
+	private class IdleCheck implements Runnable, MessageQueue.IdleHandler {
+
+		private final List<View> mRoots;
+
+		private final Condition mCondition;
+
+		// notified instead of a waiting thread for asynchronous waits
+		private final Callback mCallback;
+
+		private boolean mIdle;
+
+		private boolean mCancelled;
+
+		// posted for asynchronous waits, removed once we're idle so it doesn't hold on to the roots
+		final Runnable mTimeout = new Runnable() {
+			@Override
+			public void run() {
+				timeout();
+			}
+		};
+
+		IdleCheck(List<View> roots, Condition condition) {
+			this(roots, condition, null);
+		}
+
+		IdleCheck(List<View> roots, Condition condition, Callback callback) {
+			mRoots = roots;
+			mCondition = condition;
+			mCallback = callback;
+		}
+
+		/** Posted to the UI thread, arms the idle handler. */
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (mCancelled) return;
+			}
+
+			Looper.myQueue().addIdleHandler(this);
+		}
+
+		@Override
+		public boolean queueIdle() {
+			synchronized (this) {
+				if (mCancelled) return false;
+			}
+
+			if (isQuiet(mRoots) && (mCondition == null || mCondition.isSatisfied())) {
+				synchronized (this) {
+					mIdle = true;
+					notifyAll();
+				}
+
+				if (mCallback != null) {
+					mMainHandler.removeCallbacks(mTimeout);
+					mCallback.onIdle(true);
+				}
+			} else {
+				// not there yet, look again after the next frame
+				mMainHandler.postDelayed(this, RECHECK_DELAY);
+			}
+
+			return false; // one shot, re-armed above if needed
+		}
+
+		/** Gives up an asynchronous wait, called on the UI thread. */
+		void timeout() {
+			synchronized (this) {
+				if (mIdle || mCancelled) return;
+
+				mCancelled = true;
+			}
+
+			mMainHandler.removeCallbacks(this);
+			mCallback.onIdle(false);
+		}
+
+		synchronized boolean await(long timeout) {
+			long deadline = SystemClock.uptimeMillis() + timeout;
+
+			try {
+				while ( ! mIdle) {
+					long remaining = deadline - SystemClock.uptimeMillis();
+
+					if (remaining <= 0) break;
+
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			if ( ! mIdle) {
+				mCancelled = true;
+				mMainHandler.removeCallbacks(this);
+			}
+
+			return mIdle;
+		}
+	}
+}
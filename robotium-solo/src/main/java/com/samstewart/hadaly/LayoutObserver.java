@@ -0,0 +1,312 @@
+package com.samstewart.hadaly;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Instrumentation;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+/**
+ * Keeps a layout generation counter for the current root views (one per window when
+ * searching several windows). The counter is bumped when views are added or removed
+ * and by the roots' {@link ViewTreeObserver}s every time a layout pass happens, so
+ * anything derived from the hierarchy (indexes, cached query results) can be
+ * invalidated in bulk by comparing generations. Frames alone don't count: an
+ * animation would otherwise invalidate everything on every frame.
+ *
+ * A group only holds one ViewGroup.OnHierarchyChangeListener and the app under test
+ * may own it, so ours forward to the app's and are taken out again on release. If
+ * the app replaces ours, adding a view still requests a layout which we see.
+ *
+ * Other threads can block until something changes with {@link #awaitChange(int, long)}
+ * instead of polling the hierarchy. Waits also wake up for every frame since a view
+ * can start matching (its text changed, it became visible) without a layout.
+ * @author samstewart
+ *
+ */
+class LayoutObserver {
+
+	private final Instrumentation mInstrumentation;
+
+	// read through reflection so we can forward to the app's listener, null if we can't
+	private static final Field HIERARCHY_LISTENER_FIELD = findHierarchyListenerField();
+
+	private final AtomicInteger mGeneration = new AtomicInteger();
+
+	// bumped with the generation and for every frame, see awaitChange()
+	private final AtomicInteger mChanges = new AtomicInteger();
+
+	// the observed roots and the observer we registered with for each of them
+	private final ArrayList<View> mRoots = new ArrayList<View>();
+
+	private final ArrayList<ViewTreeObserver> mObservers = new ArrayList<ViewTreeObserver>();
+
+	// every group we put a listener on, only touched on the UI thread
+	private final WeakHashMap<ViewGroup, HierarchyListener> mHierarchyListeners = new WeakHashMap<ViewGroup, HierarchyListener>();
+
+	// separate from this so the UI thread never waits on observe() or release()
+	private final Object mChangeLock = new Object();
+
+	// threads blocked in awaitChange, the UI thread only notifies when there are any
+	private int mWaiters;
+
+	private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+		@Override
+		public void onGlobalLayout() {
+			onLayoutChanged();
+		}
+	};
+
+	// only wakes waiters, changes which just invalidate (text, visibility of a fixed size view) can make a view match
+	private final ViewTreeObserver.OnPreDrawListener mDrawListener = new ViewTreeObserver.OnPreDrawListener() {
+		@Override
+		public boolean onPreDraw() {
+			mChanges.incrementAndGet();
+			signal();
+			return true; // never cancel the draw
+		}
+	};
+
+	/**
+	 * Bumps the generation when a child is added or removed and passes the call on
+	 * to the listener the app had set, if any.
+	 */
+	private class HierarchyListener implements ViewGroup.OnHierarchyChangeListener {
+
+		final ViewGroup.OnHierarchyChangeListener mDelegate;
+
+		HierarchyListener(ViewGroup.OnHierarchyChangeListener delegate) {
+			mDelegate = delegate;
+		}
+
+		@Override
+		public void onChildViewAdded(View parent, View child) {
+			listen(child);
+			onLayoutChanged();
+
+			if (mDelegate != null) mDelegate.onChildViewAdded(parent, child);
+		}
+
+		@Override
+		public void onChildViewRemoved(View parent, View child) {
+			onLayoutChanged();
+
+			if (mDelegate != null) mDelegate.onChildViewRemoved(parent, child);
+		}
+	}
+
+	public LayoutObserver(Instrumentation instrumentation) {
+		mInstrumentation = instrumentation;
+	}
+
+	/**
+	 * Starts observing the root (and stops observing the previous ones).
+	 */
+	public void observe(View root) {
+		observe(Collections.singletonList(root));
+	}
+
+	/**
+	 * Starts observing the roots (and stops observing the previous ones). Cheap to
+	 * call before every query, it only touches the UI thread when the roots change.
+	 */
+	public synchronized void observe(final List<View> roots) {
+		if (roots.equals(mRoots)) return; // views compare by identity
+
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				detach();
+
+				for (View root : roots) {
+					ViewTreeObserver observer = root.getViewTreeObserver();
+					observer.addOnGlobalLayoutListener(mLayoutListener);
+					observer.addOnPreDrawListener(mDrawListener);
+
+					mRoots.add(root);
+					mObservers.add(observer);
+
+					listen(root);
+				}
+			}
+		});
+
+		onLayoutChanged(); // different roots, nothing derived from the old ones is valid
+	}
+
+	/**
+	 * Stops observing. Must be called during tear down so we don't keep the roots alive.
+	 */
+	public synchronized void release() {
+		if (mRoots.isEmpty()) return;
+
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				detach();
+			}
+		});
+
+		onLayoutChanged();
+	}
+
+	/**
+	 * @return The current generation, changes every time views are added or removed
+	 * or the observed hierarchy is laid out
+	 */
+	public int getGeneration() {
+		return mGeneration.get();
+	}
+
+	/**
+	 * @return Changes with the generation and for every frame drawn, pass it to
+	 * {@link #awaitChange(int, long)}
+	 */
+	public int getChanges() {
+		return mChanges.get();
+	}
+
+	/**
+	 * Blocks until the hierarchy changes or is drawn, or the timeout expires. Read
+	 * {@link #getChanges()} before looking at the hierarchy so changes made in between
+	 * aren't missed.
+	 * @param changes The {@link #getChanges()} the caller last saw
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return true if something changed, false on timeout
+	 */
+	public boolean awaitChange(int changes, long timeout) {
+		long deadline = SystemClock.uptimeMillis() + timeout;
+
+		synchronized (mChangeLock) {
+			mWaiters++;
+
+			try {
+				while (mChanges.get() == changes) {
+					long remaining = deadline - SystemClock.uptimeMillis();
+					if (remaining <= 0) return false;
+
+					mChangeLock.wait(remaining);
+				}
+
+				return true;
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+
+			} finally {
+				mWaiters--;
+			}
+		}
+	}
+
+	/** @return The observed roots */
+	public synchronized List<View> getRoots() {
+		return new ArrayList<View>(mRoots);
+	}
+
+	/** Called on the UI thread whenever the observed hierarchy changes. */
+	protected void onLayoutChanged() {
+		mGeneration.incrementAndGet();
+		mChanges.incrementAndGet();
+		signal();
+	}
+
+	/**
+	 * Puts our hierarchy listener on every group below the view which doesn't have
+	 * it yet. Called on the UI thread.
+	 */
+	private void listen(View view) {
+		if (HIERARCHY_LISTENER_FIELD == null || ! (view instanceof ViewGroup)) return;
+
+		ViewGroup group = (ViewGroup)view;
+		ViewGroup.OnHierarchyChangeListener current = getHierarchyListener(group);
+		HierarchyListener ours = mHierarchyListeners.get(group);
+
+		// new to us, or the app has put its own listener on since
+		if (ours == null || current != ours) {
+			HierarchyListener listener = new HierarchyListener(current);
+
+			group.setOnHierarchyChangeListener(listener);
+			mHierarchyListeners.put(group, listener);
+		}
+
+		for (int i = 0; i < group.getChildCount(); i++) listen(group.getChildAt(i));
+	}
+
+	/** Gives every group whose listener is still ours the app's back. */
+	private void unlisten() {
+		for (Map.Entry<ViewGroup, HierarchyListener> entry : mHierarchyListeners.entrySet()) {
+			ViewGroup group = entry.getKey();
+
+			if (group != null && getHierarchyListener(group) == entry.getValue())
+				group.setOnHierarchyChangeListener(entry.getValue().mDelegate);
+		}
+
+		mHierarchyListeners.clear();
+	}
+
+	private static ViewGroup.OnHierarchyChangeListener getHierarchyListener(ViewGroup group) {
+		try {
+			return (ViewGroup.OnHierarchyChangeListener)HIERARCHY_LISTENER_FIELD.get(group);
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	private static Field findHierarchyListenerField() {
+		try {
+			Field field = ViewGroup.class.getDeclaredField("mOnHierarchyChangeListener");
+			field.setAccessible(true);
+			return field;
+		} catch (Exception e) {
+			return null; // layouts still tell us about new views
+		}
+	}
+
+	private void signal() {
+		synchronized (mChangeLock) {
+			if (mWaiters > 0) mChangeLock.notifyAll();
+		}
+	}
+
+	private void detach() {
+		for (int i = 0; i < mRoots.size(); i++) {
+			View root = mRoots.get(i);
+			ViewTreeObserver observer = mObservers.get(i);
+
+			// the observer we registered with may have been merged into another one when attached
+			if (observer.isAlive())
+				removeListeners(observer);
+
+			if (root.getViewTreeObserver() != observer && root.getViewTreeObserver().isAlive())
+				removeListeners(root.getViewTreeObserver());
+		}
+
+		mRoots.clear();
+		mObservers.clear();
+
+		unlisten();
+	}
+
+	private void removeListeners(ViewTreeObserver observer) {
+		observer.removeGlobalOnLayoutListener(mLayoutListener);
+		observer.removeOnPreDrawListener(mDrawListener);
+	}
+
+	private void runOnMainSync(Runnable task) {
+		if (Looper.myLooper() == Looper.getMainLooper())
+			task.run();
+		else
+			mInstrumentation.runOnMainSync(task);
+	}
+}
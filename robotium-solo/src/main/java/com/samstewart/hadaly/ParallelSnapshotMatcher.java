@@ -0,0 +1,242 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Matches a selector against a large {@link HierarchySnapshot} on several cores.
+ *
+ * The snapshot is split by subtree into contiguous chunks of nodes (pre-order keeps
+ * a subtree contiguous) and every chunk is matched by its own {@link SnapshotMatcher}
+ * on a small pool of worker threads. Chunk results are concatenated in chunk order
+ * so the nodes come back in document order. First match queries share the best
+ * node found so far so chunks after it stop as soon as they reach it.
+ *
+ * A query never returns while any of its chunks is still running: the matchers are
+ * reused by the next query, so chunks left over after an early return are told to
+ * stop and waited for.
+ *
+ * Snapshots below the threshold are matched sequentially on the calling thread,
+ * the hand-off isn't worth it for small hierarchies.
+ *
+ * Note: ForkJoinPool isn't available on the platform versions we support so this
+ * uses a fixed pool and a single level of splitting instead.
+ * @author samstewart
+ *
+ */
+class ParallelSnapshotMatcher {
+
+	public static final int DEFAULT_THRESHOLD = 2000;
+
+	private static final int NONE = Integer.MAX_VALUE;
+
+	private final int mParallelism;
+
+	private int mThreshold = DEFAULT_THRESHOLD;
+
+	private ExecutorService mExecutor;
+
+	// one matcher per chunk, reused between queries
+	private final ArrayList<SnapshotMatcher> mMatchers = new ArrayList<SnapshotMatcher>();
+
+	public ParallelSnapshotMatcher() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelSnapshotMatcher(int parallelism) {
+		mParallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @param threshold Snapshots with fewer nodes than this are matched sequentially
+	 */
+	public void setThreshold(int threshold) {
+		mThreshold = threshold;
+	}
+
+	public int getThreshold() {
+		return mThreshold;
+	}
+
+	/**
+	 * @param snapshot The captured hierarchy
+	 * @param compounds The selector compounds (see {@link Selector#getCompounds()})
+	 * @param limit The maximum number of nodes to return ({@link ViewFetcher#NO_LIMIT} for all)
+	 * @return The matching nodes in document order
+	 */
+	public List<Integer> find(final HierarchySnapshot snapshot, final Selector[] compounds, final int limit) {
+		ArrayList<Integer> nodes = new ArrayList<Integer>();
+
+		if (limit == 0) return nodes;
+
+		int size = snapshot.size();
+
+		if (size < mThreshold || mParallelism == 1) {
+			SnapshotMatcher matcher = getMatcher(0);
+			matcher.reset(snapshot, 1);
+
+			scan(matcher, compounds, 0, size, limit, null, null, nodes);
+			return nodes;
+		}
+
+		List<int[]> chunks = split(snapshot, Math.max(mThreshold / 4, size / (mParallelism * 4)));
+
+		// only first match queries can cut other chunks short
+		final AtomicInteger best = (limit == 1 ? new AtomicInteger(NONE) : null);
+
+		// set once we have enough, chunks still running give up
+		final AtomicBoolean stop = new AtomicBoolean();
+
+		ArrayList<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>(chunks.size());
+
+		for (int i = 0; i < chunks.size(); i++) {
+			final int[] chunk = chunks.get(i);
+			final SnapshotMatcher matcher = getMatcher(i);
+
+			results.add(getExecutor().submit(new Callable<List<Integer>>() {
+				@Override
+				public List<Integer> call() {
+					ArrayList<Integer> found = new ArrayList<Integer>();
+
+					matcher.reset(snapshot, 1);
+					scan(matcher, compounds, chunk[0], chunk[1], limit, best, stop, found);
+
+					return found;
+				}
+			}));
+		}
+
+		try {
+			for (int i = 0; i < results.size() && nodes.size() != limit; i++) {
+				for (Integer node : results.get(i).get()) {
+					nodes.add(node);
+
+					if (nodes.size() == limit) break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			stop.set(true);
+			awaitAll(results);
+		}
+
+		return nodes;
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public synchronized void shutdown() {
+		if (mExecutor != null) mExecutor.shutdownNow();
+		mExecutor = null;
+	}
+
+	private static void scan(SnapshotMatcher matcher, Selector[] compounds, int from, int to, int limit,
+							 AtomicInteger best, AtomicBoolean stop, List<Integer> found) {
+		for (int node = from; node < to; node++) {
+			if (stop != null && stop.get()) return;
+
+			// an earlier chunk already has the first match
+			if (best != null && node > best.get()) return;
+
+			if ( ! matcher.matches(compounds, 0, node)) continue;
+
+			found.add(node);
+
+			if (best != null) {
+				int current;
+				do {
+					current = best.get();
+				} while (node < current && ! best.compareAndSet(current, node));
+			}
+
+			if (found.size() == limit) return;
+		}
+	}
+
+	/**
+	 * Splits the nodes into contiguous [from, to) chunks along subtree boundaries. Subtrees
+	 * larger than the target size are broken up into their root and their child subtrees.
+	 */
+	private static List<int[]> split(HierarchySnapshot snapshot, int target) {
+		ArrayList<int[]> chunks = new ArrayList<int[]>();
+
+		int chunkStart = 0;
+		int node = 0;
+
+		while (node < snapshot.size()) {
+			int end = snapshot.getSubtreeEnd(node);
+
+			// too big to take whole, take just the root and descend into its children
+			int next = (end - node > target ? node + 1 : end);
+
+			if (next - chunkStart >= target) {
+				chunks.add(new int[] { chunkStart, next });
+				chunkStart = next;
+			}
+
+			node = next;
+		}
+
+		if (chunkStart < snapshot.size())
+			chunks.add(new int[] { chunkStart, snapshot.size() });
+
+		return chunks;
+	}
+
+	private SnapshotMatcher getMatcher(int chunk) {
+		while (mMatchers.size() <= chunk) mMatchers.add(new SnapshotMatcher());
+
+		return mMatchers.get(chunk);
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (mExecutor == null) {
+			mExecutor = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, Hadaly.LOGGING_TAG + "-matcher-" + mCount.incrementAndGet());
+					thread.setDaemon(true); // never keep the test process alive
+					return thread;
+				}
+			});
+		}
+
+		return mExecutor;
+	}
+
+	/**
+	 * Waits for every chunk to be done, even if we're interrupted (the interrupt is kept).
+	 */
+	private static void awaitAll(List<Future<List<Integer>>> results) {
+		boolean interrupted = false;
+
+		for (Future<List<Integer>> result : results) {
+			while (true) {
+				try {
+					result.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break; // already reported, or nobody is interested any more
+				}
+			}
+		}
+
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,99 @@
+package com.samstewart.hadaly;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.view.View;
+import android.view.ViewParent;
+
+/**
+ * Remembers the view each selector last resolved to, tagged with the
+ * {@link LayoutObserver} generation it was found in. As long as no views have been
+ * added or removed and nothing was laid out since, a repeated query only has to check the
+ * cached view is still attached and still matches.
+ *
+ * Views and their roots are held weakly so cached entries never keep a finished
+ * activity alive. Keyed by {@link Selector} identity, which works because
+ * {@link Selector#compile(String)} hands out shared instances.
+ * @author samstewart
+ *
+ */
+class QueryCache {
+
+	private static final int CAPACITY = 64;
+
+	private static class Entry {
+		final WeakReference<View> view;
+
+		final WeakReference<View> root;
+
+		final int generation;
+
+		Entry(View view, View root, int generation) {
+			this.view = new WeakReference<View>(view);
+			this.root = new WeakReference<View>(root);
+			this.generation = generation;
+		}
+	}
+
+	private final LinkedHashMap<Selector, Entry> mEntries = new LinkedHashMap<Selector, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Selector, Entry> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+	private int mHits;
+
+	private int mMisses;
+
+	/**
+	 * @return The cached view if it was found in the current generation under the
+	 * same root and still matches, otherwise null.
+	 */
+	public View get(Selector selector, View root, int generation) {
+		Entry entry = mEntries.get(selector);
+
+		View view = (entry != null && entry.generation == generation && entry.root.get() == root ?
+					 entry.view.get() 													  :
+					 null);
+
+		if (view == null || ! isAttached(view, root) || ! HierarchyWalker.matches(selector.getCompounds(), view, root)) {
+			mMisses++;
+			return null;
+		}
+
+		mHits++;
+		return view;
+	}
+
+	public void put(Selector selector, View view, View root, int generation) {
+		mEntries.put(selector, new Entry(view, root, generation));
+	}
+
+	public void clear() {
+		mEntries.clear();
+	}
+
+	public int getHits() {
+		return mHits;
+	}
+
+	public int getMisses() {
+		return mMisses;
+	}
+
+	private static boolean isAttached(View view, View root) {
+		for (View cur = view; cur != null; ) {
+			if (cur == root) return true;
+
+			ViewParent parent = cur.getParent();
+			cur = (parent instanceof View ? (View)parent : null);
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,144 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import android.test.InstrumentationTestCase;
+import android.view.KeyEvent;
+import android.view.View;
+
+import com.samstewart.hadaly.Script.Command;
+import com.samstewart.hadaly.Script.Step;
+import com.samstewart.hadaly.actions.Actions;
+import com.samstewart.hadaly.actions.ActivityWatcher;
+
+/**
+ * Replays a {@link Script} as fast as the app allows.
+ *
+ * Selectors are compiled once up front. Views are resolved a segment at a time: a
+ * run of 'wait' steps and the action after them are resolved together against one
+ * {@link HierarchySnapshot} (see {@link ViewFetcher#waitForViews(Selector[], long)}),
+ * since waits don't change the hierarchy. After every step which does change it we
+ * wait for the app to go idle and move on; there are no fixed delays.
+ * @author samstewart
+ *
+ */
+class Replayer {
+
+	private final ViewFetcher mViewSearcher;
+
+	private final ActivityWatcher mActivityWatcher;
+
+	private final InstrumentationTestCase mTestCase;
+
+	private final IdleSynchronizer mIdleSynchronizer;
+
+	private final int mTimeout;
+
+	Replayer(ViewFetcher viewSearcher, ActivityWatcher activityWatcher, InstrumentationTestCase testCase,
+			 IdleSynchronizer idleSynchronizer, int timeout) {
+		mViewSearcher = viewSearcher;
+		mActivityWatcher = activityWatcher;
+		mTestCase = testCase;
+		mIdleSynchronizer = idleSynchronizer;
+		mTimeout = timeout;
+	}
+
+	public void replay(Script script) {
+		Tracer.begin("Replay.run");
+		try {
+			script.compile();
+
+			List<Step> steps = script.getSteps();
+
+			int next = 0;
+			while (next < steps.size()) next = replaySegment(steps, next);
+		} finally {
+			Tracer.end();
+		}
+	}
+
+	/**
+	 * Replays the waits starting at first plus the step after them.
+	 * @return The index of the first step after the segment
+	 */
+	private int replaySegment(List<Step> steps, int first) {
+		int end = first;
+		while (end < steps.size() && steps.get(end).getCommand() == Command.WAIT_FOR_VIEW) end++;
+		if (end < steps.size()) end++; // the step the waits lead up to
+
+		View[] views = resolve(steps, first, end);
+
+		for (int i = first; i < end; i++) {
+			Step step = steps.get(i);
+
+			Tracer.begin("Replay.step");
+			try {
+				replayStep(step, views[i - first]);
+			} finally {
+				Tracer.end();
+			}
+		}
+
+		return end;
+	}
+
+	private View[] resolve(List<Step> steps, int first, int end) {
+		ArrayList<Selector> selectors = new ArrayList<Selector>();
+		for (int i = first; i < end; i++)
+			if (steps.get(i).getCommand().hasSelector()) selectors.add(steps.get(i).getSelector());
+
+		View[] views = new View[end - first];
+
+		if (selectors.isEmpty()) return views;
+
+		// the previous step may have started a new activity
+		mViewSearcher.setActivity(mActivityWatcher.getCurrentActivity());
+
+		View[] resolved = mViewSearcher.waitForViews(selectors.toArray(new Selector[selectors.size()]), mTimeout);
+
+		for (int i = first, selector = 0; i < end; i++) {
+			if ( ! steps.get(i).getCommand().hasSelector()) continue;
+
+			views[i - first] = resolved[selector++];
+
+			Assert.assertNotNull("Timed out waiting for: " + steps.get(i).getArgument(0), views[i - first]);
+		}
+
+		return views;
+	}
+
+	private void replayStep(Step step, View view) {
+		switch (step.getCommand()) {
+			case WAIT_FOR_VIEW:
+				return; // resolved is all it takes
+
+			case WAIT_FOR_IDLE:
+				settle();
+				return;
+
+			case TAP:
+				Actions.tapAction().doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+				break;
+
+			case ENTER_TEXT:
+				Actions.enterTextAction(step.getArgument(1), mIdleSynchronizer).doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+				break;
+
+			case TAP_IN_WEBVIEW:
+				Actions.tapWebviewAction(step.getArgument(1), mIdleSynchronizer).doAction(mActivityWatcher.getCurrentActivity(), mTestCase, view);
+				break;
+
+			case GO_BACK:
+				Actions.sendKeycodeAction(KeyEvent.KEYCODE_BACK).doAction(null, mTestCase, null);
+				break;
+		}
+
+		settle();
+	}
+
+	private void settle() {
+		mIdleSynchronizer.waitForIdle(mViewSearcher.getRootViews());
+	}
+}
@@ -0,0 +1,258 @@
+package com.samstewart.hadaly;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded sequence of Hadaly steps which can be saved, edited by hand and replayed
+ * (see {@link Hadaly#startRecording()} and {@link Hadaly#replay(Script)}).
+ *
+ * The format is one step per line, the command followed by its arguments, all
+ * separated by tabs (tabs, newlines and backslashes inside arguments are escaped
+ * with a backslash). Blank lines and lines starting with '#' are ignored:
+ *
+ * <pre>
+ * wait	#login_form
+ * text	#email	sam@example.com
+ * tap	#login
+ * webtap	.WebView	a.accept
+ * back
+ * idle
+ * </pre>
+ *
+ * Timing isn't recorded on purpose: a replay runs the steps back to back and
+ * only waits for the app to go idle (or for a view to show up) in between.
+ * @author samstewart
+ *
+ */
+public class Script {
+
+	public enum Command {
+		TAP("tap", 1),
+		ENTER_TEXT("text", 2),
+		GO_BACK("back", 0),
+		TAP_IN_WEBVIEW("webtap", 2),
+		WAIT_FOR_VIEW("wait", 1),
+		WAIT_FOR_IDLE("idle", 0);
+
+		private final String mName;
+
+		private final int mArguments;
+
+		Command(String name, int arguments) {
+			mName = name;
+			mArguments = arguments;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** @return true if the first argument is a selector for a native view */
+		boolean hasSelector() {
+			return mArguments > 0;
+		}
+
+		static Command forName(String name) {
+			for (Command command : values())
+				if (command.mName.equals(name)) return command;
+
+			return null;
+		}
+	}
+
+	public static class Step {
+		private final Command mCommand;
+
+		private final String[] mArguments;
+
+		// compiled once before a replay
+		private Selector mSelector;
+
+		Step(Command command, String[] arguments) {
+			mCommand = command;
+			mArguments = arguments;
+		}
+
+		public Command getCommand() {
+			return mCommand;
+		}
+
+		public String getArgument(int index) {
+			return mArguments[index];
+		}
+
+		Selector getSelector() {
+			return mSelector;
+		}
+	}
+
+	private final ArrayList<Step> mSteps = new ArrayList<Step>();
+
+	/**
+	 * Appends a step.
+	 * @throws IllegalArgumentException if the number of arguments doesn't fit the command
+	 */
+	public Script add(Command command, String... arguments) {
+		if (arguments.length != command.mArguments)
+			throw new IllegalArgumentException("'" + command.mName + "' takes " + command.mArguments + " arguments");
+
+		for (String argument : arguments)
+			if (argument == null) throw new IllegalArgumentException("'" + command.mName + "' arguments can't be null");
+
+		mSteps.add(new Step(command, arguments.clone()));
+		return this;
+	}
+
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(mSteps);
+	}
+
+	public int size() {
+		return mSteps.size();
+	}
+
+	/**
+	 * Parses every selector once so a replay never parses.
+	 * @throws SelectorParseException if a selector is malformed
+	 */
+	void compile() {
+		for (Step step : mSteps)
+			if (step.mCommand.hasSelector() && step.mSelector == null)
+				step.mSelector = Selector.compile(step.mArguments[0]);
+	}
+
+	///////////////////////////////////////////////
+	//////////  Reading and writing ///////////////
+
+	/**
+	 * @throws IllegalArgumentException for unknown commands or the wrong number of arguments (with the line number)
+	 */
+	public static Script parse(String script) {
+		try {
+			return read(new StringReader(script));
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage()); // can't happen with a string
+		}
+	}
+
+	public static Script read(File file) throws IOException {
+		FileReader reader = new FileReader(file);
+
+		try {
+			return read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static Script read(Reader reader) throws IOException {
+		Script script = new Script();
+		BufferedReader lines = new BufferedReader(reader);
+
+		int lineNumber = 0;
+		for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+			lineNumber++;
+
+			if (line.trim().length() == 0 || line.startsWith("#")) continue;
+
+			String[] fields = line.split("\t", -1);
+			Command command = Command.forName(fields[0]);
+
+			if (command == null)
+				throw new IllegalArgumentException("Unknown command '" + fields[0] + "' on line " + lineNumber);
+
+			String[] arguments = new String[fields.length - 1];
+			for (int i = 1; i < fields.length; i++) arguments[i - 1] = unescape(fields[i]);
+
+			try {
+				script.add(command, arguments);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(e.getMessage() + " on line " + lineNumber);
+			}
+		}
+
+		return script;
+	}
+
+	public void write(File file) throws IOException {
+		FileWriter writer = new FileWriter(file);
+
+		try {
+			write(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	public void write(Writer writer) throws IOException {
+		writer.write(toString());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder script = new StringBuilder();
+
+		for (Step step : mSteps) {
+			script.append(step.mCommand.mName);
+
+			for (String argument : step.mArguments) script.append('\t').append(escape(argument));
+
+			script.append('\n');
+		}
+
+		return script.toString();
+	}
+
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+				case '\\': escaped.append("\\\\"); break;
+				case '\t': escaped.append("\\t");  break;
+				case '\n': escaped.append("\\n");  break;
+				case '\r': escaped.append("\\r");  break;
+				default:   escaped.append(c);
+			}
+		}
+
+		return escaped.toString();
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('\\') == -1) return value;
+
+		StringBuilder unescaped = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c != '\\' || i == value.length() - 1) {
+				unescaped.append(c);
+				continue;
+			}
+
+			char next = value.charAt(++i);
+			switch (next) {
+				case 't': unescaped.append('\t'); break;
+				case 'n': unescaped.append('\n'); break;
+				case 'r': unescaped.append('\r'); break;
+				default:  unescaped.append(next);
+			}
+		}
+
+		return unescaped.toString();
+	}
+}
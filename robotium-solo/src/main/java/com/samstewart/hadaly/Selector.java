@@ -1,10 +1,10 @@
 package com.samstewart.hadaly;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Class which represents a simple jquery-like selector for traversing the view hierarchy.
@@ -22,20 +22,23 @@ import java.util.regex.Pattern;
  * 
  * Eventually, we'll support the full feature set of jquery.
  * 
- * Note: if you need spaces in your selector (say in a content description) you must use underscores
- * for the spaces. These will be replaced internally....
+ * Note: underscores in attribute values are replaced with spaces, a holdover from when
+ * spaces weren't allowed anywhere in a selector. Quoted values may now contain spaces directly.
+ * 
+ * Selectors are immutable once parsed. Use {@link #compile(String)} to share
+ * parsed selectors through a bounded LRU cache instead of re-parsing the string.
  * @author samstewart
  *
  */
 public class Selector {
 	
-	private String curSelector 				= "";
+	private final String curSelector;
 	
-	private Selector child 					= null; // direct descendant
+	private final Selector child; // direct descendant
 	
-	private int integerID 					= -1;
+	private final int integerID;
 	
-	private String stringID				    = "";
+	private final String stringID;
 	
 	public static enum Attribute {
 		Tag("tag"),
@@ -54,112 +57,73 @@ public class Selector {
 		}
 	}
 	
-	private HashMap<String, String> attributes = new HashMap<String, String>();
+	private final Map<String, String> attributes;
 	
-	private ArrayList<String> classes 		= new ArrayList<String>();
+	private final List<String> classes;
 	
-	private final String CHILD_SEPARATOR 	= " ";
+	private volatile ViewMatcher matcher; // compiled lazily, see getMatcher()
 	
-	// tool for testing regex: http://regexpal.com/
+	private volatile Selector[] compounds; // this compound and its descendants, see getCompounds()
 	
-	private final String CLASS_REGEX 		= "((?:\\.\\w+)+)";
+	private volatile Set<String> properties; // accessor based attributes, see getProperties()
 	
-	private final String ID_REGEX 			= "#(\\w+)";
+	private static final SelectorCache<Selector> cache = new SelectorCache<Selector>(SelectorCache.DEFAULT_CAPACITY) {
+		@Override
+		protected Selector parse(String selectorStr) {
+			return SelectorParser.parse(selectorStr);
+		}
+	};
 	
-	private final String ATTRIBUTE_REGEX 	= "\\[(\\w+)='([^\\]]+)'\\]";
+	/**
+	 * Returns the compiled selector for the given string, parsing it only
+	 * if it isn't already in the shared cache. Selectors are immutable so
+	 * the same instance can safely be handed to every caller.
+	 * @param selectorStr The selector string ('.ListView #more_games')
+	 * @return The (possibly cached) compiled selector
+	 */
+	public static Selector compile(String selectorStr) {
+		return cache.get(selectorStr);
+	}
 	
-	public Selector(String selectorStr) {
-		parseSelectorHierarchy(selectorStr);
+	/** @return Number of {@link #compile(String)} calls answered from the cache */
+	public static long getCacheHits() {
+		return cache.getHits();
+	}
+	
+	/** @return Number of {@link #compile(String)} calls which had to parse the selector */
+	public static long getCacheMisses() {
+		return cache.getMisses();
+	}
+	
+	public static void clearCache() {
+		cache.clear();
 	}
 	
 	/**
-	 * Parses a single node selector instead of an entire
-	 * hierarchy string (ex: '#more_games')
-	 * 
-	 * Note: The groupCount method returns all the groups
-	 * in the /original/ regex. We use the "find" method to iterate
-	 * over the matches.
-	 * @param selector The single node selector
+	 * Parses the selector string without going through the cache.
+	 * @param selectorStr The entire hierarchy selector ('a li.testcass #more_games')
+	 * @throws SelectorParseException if the selector is malformed
 	 */
-	private void parseSelector(String selector) {
-		
-		// parse the class selectors
-		Pattern pattern = Pattern.compile(CLASS_REGEX);
-		Matcher matcher = pattern.matcher(selector);
-		
-		if (matcher.find()) {
-			String allClasses = matcher.group(1);
-			
-			
-			System.out.println("all classes: "+allClasses);
-			classes = new ArrayList<String>(Arrays.asList(allClasses.split("\\.")));
-			
-			// take out blank first element
-			classes.remove(0);
-			
-			// strip off the class section
-			selector = matcher.replaceAll("");
-		}
-		
-		// parse the iD
-		pattern = Pattern.compile(ID_REGEX);
-		matcher = pattern.matcher(selector);
-		
-		if (matcher.find()) {
-			String idStr = matcher.group(1);
-			
-			
-			
-			try {
-				integerID = Integer.parseInt(idStr);
-			} catch (NumberFormatException e) {
-				integerID = -1;
-				stringID = idStr;
-				System.out.println("ID String: "+ stringID);
-			}
-			
-			// strip all of the IDs out
-			selector = matcher.replaceAll("");
-		}
-		
-		// parse the attributes
-		pattern = Pattern.compile(ATTRIBUTE_REGEX);
-		matcher = pattern.matcher(selector);
-					
-		// build keys 
-		while (matcher.find()) {
-			String key = matcher.group(1);			
-			String value = matcher.group(2).replace("_", " ");
-			
-			System.out.println("Key: " + key + " Value: " + value);
-			attributes.put(matcher.group(1), matcher.group(2).replace("_", " "));
-		}
-		
-		// strip all the attributes out
-		selector = matcher.replaceAll("");
+	public Selector(String selectorStr) {
+		this(SelectorParser.parse(selectorStr));
+	}
 	
+	private Selector(Selector parsed) {
+		this(parsed.curSelector, parsed.classes, parsed.integerID, parsed.stringID, parsed.attributes, parsed.child);
 	}
 	
-	/** 
-	 * Parses an entire selector string ('a li.testcass #more_games') as opposed to a single 'node' ('#more_games')
-	 * @param fullSelector The entire hierarchy selector
+	/**
+	 * Builds a single compound of the selector AST. Only used by {@link SelectorParser}
+	 * which hands over collections nobody else holds a reference to.
 	 */
-	private void parseSelectorHierarchy(String fullSelector) {
-		
-		// pop front selector off, parse, and then recursively parse remainder
-		curSelector = (fullSelector.indexOf(CHILD_SEPARATOR) != -1 				 		? 
-					   fullSelector.substring(0, fullSelector.indexOf(CHILD_SEPARATOR)) : 
-					   fullSelector);
-		
-		System.out.println("Cur Selector: " + curSelector);
-		
-		parseSelector(curSelector);
-		
-		// parse remainder of the string
-		if (fullSelector.indexOf(CHILD_SEPARATOR) != -1) child = new Selector(
-																	fullSelector.substring(
-																			fullSelector.indexOf(CHILD_SEPARATOR) + 1)
-																						  ); 
+	Selector(String curSelector, List<String> classes, int integerID, String stringID, 
+			 Map<String, String> attributes, Selector child) {
+		this.curSelector = curSelector;
+		this.classes 	 = classes;
+		this.integerID 	 = integerID;
+		this.stringID 	 = stringID;
+		this.attributes  = attributes;
+		this.child 		 = child;
 	}
 	
 	///////////////////////////////////////////////
@@ -169,7 +133,7 @@ public class Selector {
 		return integerID;
 	}
 	
-	public ArrayList<String> getClasses() {
+	public List<String> getClasses() {
 		return classes;
 	}
 	
@@ -177,7 +141,7 @@ public class Selector {
 		return stringID;
 	}
 	
-	public HashMap<String, String> getAttributes() {
+	public Map<String, String> getAttributes() {
 		return attributes;
 	}
 	
@@ -195,4 +159,71 @@ public class Selector {
 	public boolean hasChild() {
 		return (getChild() != null);
 	}
+	
+	/**
+	 * @return This compound compiled into a predicate chain. Compiled at most
+	 * a handful of times (benign race) and then reused for every view we visit.
+	 */
+	ViewMatcher getMatcher() {
+		ViewMatcher compiled = matcher;
+		
+		if (compiled == null) {
+			compiled = ViewMatcher.compile(this);
+			matcher = compiled;
+		}
+		
+		return compiled;
+	}
+	
+	/**
+	 * @return This compound followed by every descendant compound. Built once
+	 * so the traversal doesn't have to walk the chain for every query.
+	 */
+	Selector[] getCompounds() {
+		Selector[] chain = compounds;
+		
+		if (chain == null) {
+			int count = 0;
+			for (Selector cur = this; cur != null; cur = cur.getChild()) count++;
+			
+			chain = new Selector[count];
+			
+			int i = 0;
+			for (Selector cur = this; cur != null; cur = cur.getChild()) chain[i++] = cur;
+			
+			compounds = chain;
+		}
+		
+		return chain;
+	}
+	
+	/**
+	 * @return The accessor based attributes ('enabled', 'hint') read by this compound
+	 * and its descendants, which a {@link HierarchySnapshot} has to copy.
+	 */
+	Set<String> getProperties() {
+		Set<String> names = properties;
+		
+		if (names == null) {
+			HashSet<String> collected = new HashSet<String>();
+			
+			for (Selector compound : getCompounds())
+				compound.getMatcher().collectProperties(collected);
+			
+			names = Collections.unmodifiableSet(collected);
+			properties = names;
+		}
+		
+		return names;
+	}
+	
+	/** @return The source text of this single compound ('.TextView[text='Buy']') */
+	public String getCompoundString() {
+		return curSelector;
+	}
+	
+	@Override
+	public String toString() {
+		return (hasChild() ? curSelector + " " + child.toString() : curSelector);
+	}
 }
@@ -0,0 +1,86 @@
+package com.samstewart.hadaly;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache of compiled selectors keyed
+ * by the original selector string. Test suites tend to reuse a small
+ * set of selectors over and over so we only pay the parse cost once.
+ *
+ * Used by {@link Selector#compile(String)} and {@link SelectorGroup#compile(String)}.
+ * @author samstewart
+ *
+ */
+abstract class SelectorCache<T> {
+
+	public static final int DEFAULT_CAPACITY = 512;
+
+	private final LinkedHashMap<String, T> mSelectors;
+
+	private final AtomicLong mHits 	 = new AtomicLong();
+
+	private final AtomicLong mMisses = new AtomicLong();
+
+	public SelectorCache(final int capacity) {
+		// access ordered so the eldest entry is always the least recently used
+		mSelectors = new LinkedHashMap<String, T>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Parses a selector string on a cache miss.
+	 * @throws SelectorParseException if the selector is malformed
+	 */
+	protected abstract T parse(String selectorStr);
+
+	public T get(String selectorStr) {
+		synchronized (mSelectors) {
+			T selector = mSelectors.get(selectorStr);
+
+			if (selector != null) {
+				mHits.incrementAndGet();
+				return selector;
+			}
+		}
+
+		// parse outside the lock, worst case two threads parse the same string
+		T selector;
+		
+		Tracer.begin("selector.parse");
+		try {
+			selector = parse(selectorStr);
+		} finally {
+			Tracer.end();
+		}
+		
+		mMisses.incrementAndGet();
+
+		synchronized (mSelectors) {
+			mSelectors.put(selectorStr, selector);
+		}
+
+		return selector;
+	}
+
+	public long getHits() {
+		return mHits.get();
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	public void clear() {
+		synchronized (mSelectors) {
+			mSelectors.clear();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.samstewart.hadaly;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A comma separated group of alternative selectors ('#error, .ProgressBar, .ListView').
+ * All of the alternatives are evaluated during a single walk of the hierarchy
+ * (see {@link ViewFetcher#getMatches(SelectorGroup, int)}) which is handy for figuring
+ * out which of several states a screen is in.
+ * 
+ * Immutable once parsed, like {@link Selector}.
+ * @author samstewart
+ *
+ */
+public class SelectorGroup {
+	
+	private final String groupStr;
+	
+	private final List<Selector> alternatives;
+	
+	private final Set<String> properties;
+	
+	private static final SelectorCache<SelectorGroup> cache = new SelectorCache<SelectorGroup>(SelectorCache.DEFAULT_CAPACITY) {
+		@Override
+		protected SelectorGroup parse(String groupStr) {
+			return new SelectorGroup(groupStr);
+		}
+	};
+	
+	/**
+	 * Returns the compiled group for the given string, parsing it only
+	 * if it isn't already cached.
+	 * @param groupStr The comma separated selectors
+	 * @return The (possibly cached) compiled group
+	 */
+	public static SelectorGroup compile(String groupStr) {
+		return cache.get(groupStr);
+	}
+	
+	/**
+	 * Parses the group without going through the cache.
+	 * @throws SelectorParseException if any of the alternatives is malformed
+	 */
+	public SelectorGroup(String groupStr) {
+		this.groupStr = groupStr;
+		this.alternatives = Collections.unmodifiableList(SelectorParser.parseGroup(groupStr));
+		
+		HashSet<String> collected = new HashSet<String>();
+		for (Selector alternative : alternatives)
+			collected.addAll(alternative.getProperties());
+		
+		this.properties = Collections.unmodifiableSet(collected);
+	}
+	
+	public List<Selector> getAlternatives() {
+		return alternatives;
+	}
+	
+	public Selector getAlternative(int index) {
+		return alternatives.get(index);
+	}
+	
+	/** @return The accessor based attributes read by any of the alternatives */
+	Set<String> getProperties() {
+		return properties;
+	}
+	
+	public int size() {
+		return alternatives.size();
+	}
+	
+	@Override
+	public String toString() {
+		return groupStr;
+	}
+}
@@ -0,0 +1,42 @@
+package com.samstewart.hadaly;
+
+import android.view.View;
+
+/**
+ * A view matched by one of the alternatives of a {@link SelectorGroup}.
+ * @author samstewart
+ *
+ */
+public class SelectorMatch {
+	
+	private final View view;
+	
+	private final int alternative;
+	
+	private final Selector selector;
+	
+	SelectorMatch(View view, int alternative, Selector selector) {
+		this.view = view;
+		this.alternative = alternative;
+		this.selector = selector;
+	}
+	
+	public View getView() {
+		return view;
+	}
+	
+	/** @return The index of the matching alternative within the group */
+	public int getAlternative() {
+		return alternative;
+	}
+	
+	/** @return The matching alternative */
+	public Selector getSelector() {
+		return selector;
+	}
+	
+	@Override
+	public String toString() {
+		return "'" + selector + "' -> " + view;
+	}
+}
@@ -0,0 +1,32 @@
+package com.samstewart.hadaly;
+
+/**
+ * Thrown when a selector string can't be parsed. The column
+ * points at the offending character (1 based) so the message
+ * reads naturally next to the selector in a failing test.
+ * @author samstewart
+ *
+ */
+public class SelectorParseException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String mSelector;
+
+	private final int mColumn;
+
+	public SelectorParseException(String message, String selector, int column) {
+		super(message + " at column " + column + " in selector '" + selector + "'");
+
+		mSelector = selector;
+		mColumn = column;
+	}
+
+	public String getSelector() {
+		return mSelector;
+	}
+
+	public int getColumn() {
+		return mColumn;
+	}
+}
@@ -0,0 +1,235 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass scanner which turns a selector string into the
+ * immutable {@link Selector} AST (one {@link Selector} per compound,
+ * chained by the descendant combinator).
+ *
+ * Grammar:
+ *
+ * group     := selector (',' selector)*
+ * selector  := compound (' '+ compound)*
+ * compound  := ('.' ident | '#' ident | '[' ident '=' quoted ']')+
+ * quoted    := "'" chars "'" | '"' chars '"'
+ *
+ * We only ever look at each character once and never build intermediate
+ * substrings other than the final class names, ids and attribute values.
+ * @author samstewart
+ *
+ */
+class SelectorParser {
+
+	private static final int NO_ID = -1;
+
+	private final String mSelector;
+
+	private final int mLength;
+
+	private final boolean mGroup; // whether ',' separates alternatives
+
+	private int mPos = 0;
+
+	private SelectorParser(String selector, boolean group) {
+		mSelector = selector;
+		mLength = selector.length();
+		mGroup = group;
+	}
+
+	/**
+	 * @param selector The entire hierarchy selector ('a li.testcass #more_games')
+	 * @return The first compound of the parsed selector
+	 * @throws SelectorParseException if the selector is malformed
+	 */
+	public static Selector parse(String selector) {
+		if (selector == null) throw new SelectorParseException("Null selector", "null", 1);
+
+		return new SelectorParser(selector, false).parseHierarchy();
+	}
+
+	/**
+	 * @param group A comma separated group of selectors ('#error, .ProgressBar, .ListView')
+	 * @return The first compound of each alternative in order
+	 * @throws SelectorParseException if any of the alternatives is malformed
+	 */
+	public static List<Selector> parseGroup(String group) {
+		if (group == null) throw new SelectorParseException("Null selector", "null", 1);
+
+		SelectorParser parser = new SelectorParser(group, true);
+
+		ArrayList<Selector> alternatives = new ArrayList<Selector>(4);
+		alternatives.add(parser.parseHierarchy());
+
+		while (parser.mPos < parser.mLength) {
+			parser.expect(',');
+			alternatives.add(parser.parseHierarchy());
+		}
+
+		return alternatives;
+	}
+
+	private Selector parseHierarchy() {
+		skipWhitespace();
+
+		if (mPos == mLength || isGroupSeparator(mSelector.charAt(mPos))) throw error("Empty selector");
+
+		return parseCompound();
+	}
+
+	/**
+	 * Parses the compound at the current position along with every compound after it.
+	 * Compounds are immutable and point at their child, so the rest of the selector is
+	 * parsed before this one is built and each compound is built exactly once.
+	 */
+	private Selector parseCompound() {
+		int start = mPos;
+
+		String[] classes = null;
+		int classCount = 0;
+
+		int integerID = NO_ID;
+		String stringID = "";
+		boolean hasID = false;
+
+		HashMap<String, String> attributes = null;
+
+		while (mPos < mLength && ! isWhitespace(mSelector.charAt(mPos)) && ! isGroupSeparator(mSelector.charAt(mPos))) {
+			char c = mSelector.charAt(mPos);
+
+			switch (c) {
+			case '.':
+				mPos++;
+				String className = parseIdentifier("class name");
+
+				if (classes == null)
+					classes = new String[2];
+				else if (classCount == classes.length)
+					classes = grow(classes);
+
+				classes[classCount++] = className;
+				break;
+
+			case '#':
+				if (hasID) throw error("Duplicate id");
+				mPos++;
+				String id = parseIdentifier("id");
+				hasID = true;
+
+				try {
+					integerID = Integer.parseInt(id);
+				} catch (NumberFormatException e) {
+					stringID = id;
+				}
+				break;
+
+			case '[':
+				mPos++;
+				String key = parseIdentifier("attribute name");
+				expect('=');
+				String value = parseQuoted();
+				expect(']');
+
+				if (attributes == null) attributes = new HashMap<String, String>(4);
+				attributes.put(key, value.replace('_', ' '));
+				break;
+
+			default:
+				throw error("Unexpected '" + c + "'");
+			}
+		}
+
+		List<String> classList = (classes == null 									   ?
+								  Collections.<String>emptyList() 					   :
+								  Collections.unmodifiableList(Arrays.asList(classes).subList(0, classCount)));
+
+		Map<String, String> attributeMap = (attributes == null 						?
+											Collections.<String, String>emptyMap() 	:
+											Collections.unmodifiableMap(attributes));
+
+		String compound = mSelector.substring(start, mPos);
+
+		skipWhitespace();
+
+		Selector child = (mPos < mLength && ! isGroupSeparator(mSelector.charAt(mPos)) ? parseCompound() : null);
+
+		return new Selector(compound, classList, integerID, stringID, attributeMap, child);
+	}
+
+	private String parseIdentifier(String what) {
+		int start = mPos;
+
+		while (mPos < mLength && isIdentifierChar(mSelector.charAt(mPos))) mPos++;
+
+		if (start == mPos)
+			throw error(mPos < mLength ? "Expected " + what + " but found '" + mSelector.charAt(mPos) + "'" :
+										 "Expected " + what + " but selector ended");
+
+		return mSelector.substring(start, mPos);
+	}
+
+	/**
+	 * Parses a quoted attribute value. The value ends at the first matching quote
+	 * which is directly followed by ']' so that values like 'Don't' still work.
+	 */
+	private String parseQuoted() {
+		if (mPos == mLength) throw error("Expected quoted value but selector ended");
+
+		char quote = mSelector.charAt(mPos);
+		if (quote != '\'' && quote != '"') throw error("Expected quoted value but found '" + quote + "'");
+
+		int open = mPos;
+		int close = mSelector.indexOf(quote, open + 1);
+
+		while (close != -1 && close + 1 < mLength && mSelector.charAt(close + 1) != ']')
+			close = mSelector.indexOf(quote, close + 1);
+
+		if (close == -1 || close + 1 >= mLength) {
+			mPos = open;
+			throw error("Unterminated attribute value");
+		}
+
+		mPos = close + 1;
+		return mSelector.substring(open + 1, close);
+	}
+
+	private void expect(char expected) {
+		if (mPos == mLength) throw error("Expected '" + expected + "' but selector ended");
+
+		if (mSelector.charAt(mPos) != expected)
+			throw error("Expected '" + expected + "' but found '" + mSelector.charAt(mPos) + "'");
+
+		mPos++;
+	}
+
+	private void skipWhitespace() {
+		while (mPos < mLength && isWhitespace(mSelector.charAt(mPos))) mPos++;
+	}
+
+	private SelectorParseException error(String message) {
+		return new SelectorParseException(message, mSelector, mPos + 1);
+	}
+
+	private boolean isGroupSeparator(char c) {
+		return (mGroup && c == ',');
+	}
+
+	private static boolean isWhitespace(char c) {
+		return (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+	}
+
+	private static boolean isIdentifierChar(char c) {
+		return (Character.isLetterOrDigit(c) || c == '_');
+	}
+
+	private static String[] grow(String[] array) {
+		String[] grown = new String[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
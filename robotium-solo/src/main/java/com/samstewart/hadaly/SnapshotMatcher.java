@@ -0,0 +1,113 @@
+package com.samstewart.hadaly;
+
+/**
+ * Matches selectors against a {@link HierarchySnapshot} instead of live views.
+ *
+ * Same right to left strategy as {@link HierarchyWalker}: a node is checked against
+ * the last compound and only candidates verify their ancestors by following the
+ * parent indices. For every ancestor we memoize how many leading compounds it and
+ * its own ancestors match so each node is checked at most once per query.
+ *
+ * Reusable between queries; not thread safe.
+ * @author samstewart
+ *
+ */
+class SnapshotMatcher {
+
+	private HierarchySnapshot mSnapshot;
+
+	// mMatched[alternative][node] leading compounds matched by the node and its ancestors,
+	// only valid if mStamps[alternative][node] is the current query
+	private int[][] mMatched = new int[1][0];
+
+	private int[][] mStamps  = new int[1][0];
+
+	private int 	mQuery;
+
+	private int[] 	mPath 	 = new int[32];
+
+	/**
+	 * @param snapshot The snapshot to match against
+	 * @param alternatives The number of selectors matched during this query
+	 */
+	public void reset(HierarchySnapshot snapshot, int alternatives) {
+		mSnapshot = snapshot;
+
+		int size = snapshot.size();
+
+		if (alternatives > mMatched.length || size > mMatched[0].length) {
+			int capacity = Math.max(size, mMatched[0].length);
+			int rows = Math.max(alternatives, mMatched.length);
+
+			mMatched = new int[rows][capacity];
+			mStamps = new int[rows][capacity];
+			mQuery = 0;
+		}
+
+		// stamping instead of clearing keeps a reset O(1)
+		mQuery++;
+	}
+
+	public HierarchySnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/**
+	 * @param compounds The selector compounds (see {@link Selector#getCompounds()})
+	 * @param alternative Which memo to use (0 unless matching a {@link SelectorGroup})
+	 * @param node The node to check
+	 * @return true if the node matches the full selector
+	 */
+	public boolean matches(Selector[] compounds, int alternative, int node) {
+		int last = compounds.length - 1;
+
+		// cheap check against the last compound first, only then look up the tree
+		if ( ! compounds[last].getMatcher().matches(mSnapshot, node)) return false;
+
+		if (last == 0) return true;
+
+		int parent = mSnapshot.getParent(node);
+
+		return (parent != HierarchySnapshot.NO_PARENT && getMatched(compounds, alternative, parent) == last);
+	}
+
+	/**
+	 * Walks up until we hit a memoized ancestor (or the root) and then
+	 * fills in the memo on the way back down.
+	 */
+	private int getMatched(Selector[] compounds, int alternative, int node) {
+		int[] memo = mMatched[alternative];
+		int[] stamps = mStamps[alternative];
+		int last = compounds.length - 1;
+
+		int pathSize = 0;
+		int matched = 0;
+
+		for (int cur = node; cur != HierarchySnapshot.NO_PARENT; cur = mSnapshot.getParent(cur)) {
+			if (stamps[cur] == mQuery) {
+				matched = memo[cur];
+				break;
+			}
+
+			if (pathSize == mPath.length) {
+				int[] path = new int[mPath.length * 2];
+				System.arraycopy(mPath, 0, path, 0, pathSize);
+				mPath = path;
+			}
+
+			mPath[pathSize++] = cur;
+		}
+
+		for (int i = pathSize - 1; i >= 0; i--) {
+			int cur = mPath[i];
+
+			if (matched < last && compounds[matched].getMatcher().matches(mSnapshot, cur))
+				matched++;
+
+			memo[cur] = matched;
+			stamps[cur] = mQuery;
+		}
+
+		return matched;
+	}
+}
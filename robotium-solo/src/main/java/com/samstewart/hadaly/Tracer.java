@@ -0,0 +1,295 @@
+package com.samstewart.hadaly;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Records where a test spends its time: nested spans (selector parsing, traversal,
+ * UI thread hops, JS bridge round trips, touches, idle waits) with monotonic
+ * timestamps, exported as Chrome trace event JSON which chrome://tracing and
+ * Perfetto open directly.
+ *
+ * Spans are recorded as begin / end events into preallocated arrays used as a ring
+ * buffer, so recording never allocates and a long test only keeps its latest events.
+ * Once the buffer wraps, the ends of spans whose begin was overwritten are left out
+ * of the export so the viewer's per thread stacks stay balanced.
+ * Spans nest per thread; always pair {@link #begin(String)} with {@link #end()} in a
+ * finally block.
+ *
+ * When tracing is off (the default) begin / end are a single volatile read.
+ * @author samstewart
+ *
+ */
+public final class Tracer {
+
+	public static final int DEFAULT_CAPACITY = 32768;
+
+	private static final byte BEGIN = 'B';
+
+	private static final byte END 	= 'E';
+
+	private static volatile boolean sEnabled = false;
+
+	private static String[] sNames;
+
+	private static byte[] 	sPhases;
+
+	private static long[] 	sTimes;
+
+	private static long[] 	sThreadIds;
+
+	private static String[] sThreadNames;
+
+	// next slot to write and number of valid events (at most the capacity)
+	private static int 		sNext;
+
+	private static int 		sCount;
+
+	private static final Object sLock = new Object();
+
+	private Tracer() {}
+
+	/**
+	 * Turns recording on or off. Turning it on allocates the buffer the first time.
+	 */
+	public static void setEnabled(boolean enabled) {
+		if (enabled) setCapacity(sNames != null ? sNames.length : DEFAULT_CAPACITY);
+
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * @param capacity The number of events kept, older ones are overwritten. Drops the events recorded so far.
+	 */
+	public static void setCapacity(int capacity) {
+		synchronized (sLock) {
+			if (sNames != null && sNames.length == capacity) return;
+
+			sNames 		 = new String[capacity];
+			sPhases 	 = new byte[capacity];
+			sTimes 		 = new long[capacity];
+			sThreadIds 	 = new long[capacity];
+			sThreadNames = new String[capacity];
+			sNext 		 = 0;
+			sCount 		 = 0;
+		}
+	}
+
+	/**
+	 * Opens a span on the calling thread.
+	 * @param name What the span covers, should be a constant or cached string
+	 */
+	public static void begin(String name) {
+		if ( ! sEnabled) return;
+
+		record(BEGIN, name);
+	}
+
+	/**
+	 * Closes the innermost span opened by the calling thread.
+	 */
+	public static void end() {
+		if ( ! sEnabled) return;
+
+		record(END, null);
+	}
+
+	private static void record(byte phase, String name) {
+		long time = System.nanoTime();
+		Thread thread = Thread.currentThread();
+
+		synchronized (sLock) {
+			if (sNames == null) return;
+
+			int slot = sNext;
+
+			sNames[slot] 		= name;
+			sPhases[slot] 		= phase;
+			sTimes[slot] 		= time;
+			sThreadIds[slot] 	= thread.getId();
+			sThreadNames[slot] 	= thread.getName();
+
+			sNext = (slot + 1) % sNames.length;
+			if (sCount < sNames.length) sCount++;
+		}
+	}
+
+	/**
+	 * Drops every recorded event.
+	 */
+	public static void clear() {
+		synchronized (sLock) {
+			if (sNames == null) return;
+
+			for (int i = 0; i < sNames.length; i++) {
+				sNames[i] = null;
+				sThreadNames[i] = null;
+			}
+
+			sNext = 0;
+			sCount = 0;
+		}
+	}
+
+	/**
+	 * @return The default directory traces are written to, next to the screenshots
+	 */
+	public static File getDefaultDirectory() {
+		return new File(Environment.getExternalStorageDirectory() + "/Hadaly-Traces/");
+	}
+
+	/**
+	 * Writes the recorded events as Chrome trace event JSON. Requires write permission
+	 * (android.permission.WRITE_EXTERNAL_STORAGE) when writing to external storage.
+	 * @return true if the file was written
+	 */
+	public static boolean write(File file) {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+
+		Writer writer = null;
+
+		try {
+			writer = new BufferedWriter(new FileWriter(file));
+			write(writer);
+			return true;
+
+		} catch (IOException e) {
+			Log.d(Hadaly.LOGGING_TAG, "Can't write the trace to " + file + ": " + e.getMessage());
+			return false;
+
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the recorded events (oldest first) as Chrome trace event JSON.
+	 */
+	public static void write(Writer writer) throws IOException {
+		int pid = Process.myPid();
+
+		synchronized (sLock) {
+			writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+			if (sNames == null) {
+				writer.write("]}");
+				return;
+			}
+
+			int first = (sNext - sCount + sNames.length) % sNames.length;
+
+			Map<Long, String> threads = new HashMap<Long, String>();
+			boolean comma = false;
+
+			// spans open per thread, an end without an open span lost its begin to the ring buffer
+			Map<Long, int[]> depths = new HashMap<Long, int[]>();
+
+			for (int i = 0; i < sCount; i++) {
+				int slot = (first + i) % sNames.length;
+
+				int[] depth = depths.get(sThreadIds[slot]);
+				if (depth == null) {
+					depth = new int[1];
+					depths.put(sThreadIds[slot], depth);
+				}
+
+				if (sPhases[slot] == BEGIN) {
+					depth[0]++;
+				} else if (depth[0] > 0) {
+					depth[0]--;
+				} else {
+					continue;
+				}
+
+				if (comma) writer.write(',');
+				comma = true;
+
+				writer.write("{\"ph\":\"");
+				writer.write((char)sPhases[slot]);
+				writer.write('"');
+
+				if (sNames[slot] != null) {
+					writer.write(",\"name\":");
+					writeString(writer, sNames[slot]);
+				}
+
+				// trace timestamps are in microseconds
+				writer.write(",\"ts\":");
+				writer.write(Long.toString(sTimes[slot] / 1000));
+				writer.write('.');
+				writer.write(Long.toString(sTimes[slot] % 1000 + 1000).substring(1));
+
+				writer.write(",\"pid\":");
+				writer.write(Integer.toString(pid));
+				writer.write(",\"tid\":");
+				writer.write(Long.toString(sThreadIds[slot]));
+				writer.write('}');
+
+				threads.put(sThreadIds[slot], sThreadNames[slot]);
+			}
+
+			// name the threads so the viewer shows 'main' instead of a number
+			for (Map.Entry<Long, String> thread : threads.entrySet()) {
+				if (comma) writer.write(',');
+				comma = true;
+
+				writer.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":");
+				writer.write(Integer.toString(pid));
+				writer.write(",\"tid\":");
+				writer.write(thread.getKey().toString());
+				writer.write(",\"args\":{\"name\":");
+				writeString(writer, thread.getValue());
+				writer.write("}}");
+			}
+
+			writer.write("]}");
+		}
+	}
+
+	private static void writeString(Writer writer, String value) throws IOException {
+		writer.write('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+				case '"':  writer.write("\\\""); break;
+				case '\\': writer.write("\\\\"); break;
+				case '\n': writer.write("\\n");  break;
+				case '\r': writer.write("\\r");  break;
+				case '\t': writer.write("\\t");  break;
+				default:
+					if (c < 0x20) {
+						String hex = Integer.toHexString(c);
+						writer.write("\\u");
+						for (int pad = hex.length(); pad < 4; pad++) writer.write('0');
+						writer.write(hex);
+					} else {
+						writer.write(c);
+					}
+			}
+		}
+
+		writer.write('"');
+	}
+}
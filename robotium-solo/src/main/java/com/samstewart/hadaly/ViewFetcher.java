@@ -1,31 +1,242 @@
 package com.samstewart.hadaly;
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import android.app.Activity;
+import android.app.Instrumentation;
+import android.graphics.Rect;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.TextView;
+import android.view.ViewTreeObserver;
 
 /**
  * Main class for fetching views from the activity. 
  *
- * Searches via {@link Selector}
+ * Searches via {@link Selector}. Not thread safe, the traversal state is
+ * reused between queries.
  * @author Renas Reda, renas.reda@jayway.com
  *
  */
 
 class ViewFetcher {	
 	
+	public static final int NO_LIMIT = -1;
+	
+	// how often waits look for new windows in multi window mode
+	private static final int NEW_WINDOW_INTERVAL = 250;
+	
 	private WeakReference<Activity> mActivity;
+	
+	private final Instrumentation mInstrumentation;
+	
+	private final HierarchyWalker mWalker = new HierarchyWalker();
+	
+	private boolean mSnapshotMode = false;
+	
+	private final HierarchySnapshot mSnapshot = new HierarchySnapshot();
+	
+	private final SnapshotMatcher mSnapshotMatcher = new SnapshotMatcher();
+	
+	private ParallelSnapshotMatcher mParallelMatcher = null; // null unless parallel matching is on
+	
+	private int mParallelThreshold = ParallelSnapshotMatcher.DEFAULT_THRESHOLD;
+	
+	private boolean mIndexMode = false;
+	
+	private final ViewIndex mIndex = new ViewIndex();
+	
+	private boolean mCacheMode = false;
+	
+	private final QueryCache mCache = new QueryCache();
+	
+	private final Rect mVisibleRect = new Rect();
+	
+	private boolean mMultiWindowMode = false;
+	
+	private final WindowRoots mWindowRoots = new WindowRoots();
+	
+	private final LayoutObserver mLayoutObserver;
+	
+	// state handed to the UI thread for a capture, reused to avoid allocating a Runnable per query
+	private View mCaptureRoot;
+	
+	private Set<String> mCaptureProperties;
+	
+	private final Runnable mCaptureTask = new Runnable() {
+		@Override
+		public void run() {
+			mSnapshot.capture(mCaptureRoot, mCaptureProperties, mWalker.isPruneInvisible(), mWalker.isPruneClipped());
+		}
+	};
 		
-	public ViewFetcher(Activity activity) {
+	public ViewFetcher(Activity activity, Instrumentation instrumentation) {
 		mActivity = new WeakReference<Activity>(activity);
+		mInstrumentation = instrumentation;
+		mLayoutObserver = new LayoutObserver(instrumentation);
+	}
+	
+	/**
+	 * When enabled every query first copies the hierarchy into a {@link HierarchySnapshot}
+	 * with a single hop to the UI thread and then matches against that copy on the calling
+	 * thread. Avoids reading live views from the instrumentation thread while the UI
+	 * mutates them.
+	 */
+	public void setSnapshotMode(boolean snapshotMode) {
+		mSnapshotMode = snapshotMode;
+	}
+	
+	public boolean isSnapshotMode() {
+		return mSnapshotMode;
+	}
+	
+	/**
+	 * When enabled queries search every window of the process (dialogs, popup windows,
+	 * spinner dropdowns, toasts) topmost first instead of just the activity's window.
+	 * Indexed and cached lookups only apply to the activity's window in this mode.
+	 * Waits observe the layout of every window.
+	 */
+	public void setMultiWindowMode(boolean multiWindowMode) {
+		mMultiWindowMode = multiWindowMode;
+		
+		if ( ! multiWindowMode) mWindowRoots.clear();
+	}
+	
+	public boolean isMultiWindowMode() {
+		return mMultiWindowMode;
+	}
+	
+	/**
+	 * When enabled the traversal (live or snapshot) skips views which aren't VISIBLE along
+	 * with their subtrees, so hidden tab content and the like is never searched and every
+	 * view returned is known to be shown.
+	 */
+	public void setVisibleOnly(boolean visibleOnly) {
+		mWalker.setPruneInvisible(visibleOnly);
+	}
+	
+	public boolean isVisibleOnly() {
+		return mWalker.isPruneInvisible();
+	}
+	
+	/**
+	 * When enabled the traversal also skips views (and their subtrees) which are clipped
+	 * away entirely by their ancestors, e.g. scrolled out of a ScrollView, or have no size.
+	 */
+	public void setSkipClipped(boolean skipClipped) {
+		mWalker.setPruneClipped(skipClipped);
+	}
+	
+	public boolean isSkipClipped() {
+		return mWalker.isPruneClipped();
+	}
+	
+	/**
+	 * When enabled queries are matched against a {@link HierarchySnapshot} (as in snapshot
+	 * mode) split by subtree across a small pool of worker threads. Snapshots below the
+	 * threshold are still matched sequentially.
+	 * @see #setParallelThreshold(int)
+	 */
+	public void setParallelMode(boolean parallelMode) {
+		if (parallelMode && mParallelMatcher == null) {
+			mParallelMatcher = new ParallelSnapshotMatcher();
+			mParallelMatcher.setThreshold(mParallelThreshold);
+		} else if ( ! parallelMode && mParallelMatcher != null) {
+			mParallelMatcher.shutdown();
+			mParallelMatcher = null;
+		}
+	}
+	
+	public boolean isParallelMode() {
+		return mParallelMatcher != null;
+	}
+	
+	/**
+	 * @param threshold Hierarchies with fewer views than this are matched sequentially
+	 * even in parallel mode (defaults to {@link ParallelSnapshotMatcher#DEFAULT_THRESHOLD}).
+	 * Doesn't turn parallel mode on, see {@link #setParallelMode(boolean)}.
+	 */
+	public void setParallelThreshold(int threshold) {
+		mParallelThreshold = threshold;
+		
+		if (mParallelMatcher != null) mParallelMatcher.setThreshold(threshold);
+	}
+	
+	public int getParallelThreshold() {
+		return mParallelThreshold;
+	}
+	
+	/**
+	 * When enabled, '#id', '[tag='...']' and '[contentDescription='...']' lookups are 
+	 * answered from a {@link ViewIndex} built on the first query and rebuilt after
+	 * the next layout pass. The matcher then only verifies the indexed candidates.
+	 * 
+	 * Note: changing a tag or contentDescription doesn't trigger a layout so the index
+	 * won't see it until something else does.
+	 */
+	public void setIndexMode(boolean indexMode) {
+		mIndexMode = indexMode;
+		
+		if ( ! indexMode) {
+			mIndex.clear();
+			releaseObserverIfUnused();
+		}
+	}
+	
+	public boolean isIndexMode() {
+		return mIndexMode;
+	}
+	
+	/**
+	 * When enabled {@link #getView(Selector)} remembers the view each selector resolved to
+	 * and hands it straight back until views are added or removed or laid out, after checking it's
+	 * still attached and still matches (see {@link QueryCache}).
+	 */
+	public void setCacheMode(boolean cacheMode) {
+		mCacheMode = cacheMode;
+		
+		if ( ! cacheMode) {
+			mCache.clear();
+			releaseObserverIfUnused();
+		}
+	}
+	
+	public boolean isCacheMode() {
+		return mCacheMode;
+	}
+	
+	QueryCache getCache() {
+		return mCache;
+	}
+	
+	private void releaseObserverIfUnused() {
+		if ( ! mIndexMode && ! mCacheMode) mLayoutObserver.release();
+	}
+	
+	/**
+	 * Stops observing the hierarchy and drops every view reference.
+	 */
+	public void release() {
+		mIndex.clear();
+		mCache.clear();
+		mLayoutObserver.release();
+		mSnapshot.clear();
+		mWalker.clear();
+		mWindowRoots.clear();
+		
+		if (mParallelMatcher != null) mParallelMatcher.shutdown();
 	}
 	
 	
 	public void setActivity(Activity activity) {
+		if (getActivity() == activity) return; // called before every query, don't allocate
+		
 		mActivity = new WeakReference<Activity>(activity);
 	}
 	
@@ -34,72 +245,488 @@ class ViewFetcher {
 	}
 	
 	/**
-	 * Performs breadth-first traversal to attempt to match the selector and return the appropriate view
+	 * Performs a depth-first (document order) traversal to attempt to match the selector 
+	 * and return the first matching view. Doesn't allocate once the traversal arrays 
+	 * have grown to fit the hierarchy.
 	 * @param selector The css like selector for traversing the view hierarchy
 	 * @return The view matching the selector or null
 	 */
 	public View getView(Selector selector) {
-		if (mActivity == null || mActivity.get() == null) return null;
-		
-		// Tips and Tricks
-		// isAssignableFrom
-		// getDrawingTime
-		// getLocationOnScreen
-		// view.isShown()
-		// TODO: should we check to make sure it's shown?
-		// TODO: should we return a list of matched elements?
-		// TODO: if we return list we should use depth first search (preorder)
-		
-		// breadth first search
-		ConcurrentLinkedQueue<View> viewChildren = new ConcurrentLinkedQueue<View>();
-		
-		View curView = null;
-		View matchedView = null;
+		// cached results are tied to the activity's window
+		if ( ! mCacheMode || mMultiWindowMode) return find(selector, 1, null);
+		
 		View rootView = getRootView();
-		viewChildren.add(rootView);
 		
-		Selector curSelector = selector; 
+		if (rootView == null) return null;
+		
+		observeRoots(getRootViews());
+		
+		// read the generation before searching so a layout during the search invalidates the result
+		int generation = mLayoutObserver.getGeneration();
+		
+		View view = mCache.get(selector, rootView, generation);
 		
-		while (viewChildren.size() > 0) {
-			curView = viewChildren.poll(); // grab the current view we're examining
+		if (view == null) {
+			view = find(selector, 1, null);
+			
+			if (view != null) mCache.put(selector, view, rootView, generation);
+		}
+		
+		return view;
+	}
+	
+	/**
+	 * Waits for a view matching the selector to be shown. The selector is only re-evaluated
+	 * when a root's {@link ViewTreeObserver} reports a layout or draw pass (views being
+	 * added or removed always cause a layout) so we return as soon as the match appears 
+	 * without polling in between.
+	 * @param selector The css like selector for traversing the view hierarchy
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return The first shown view matching the selector or null if none showed up in time,
+	 * right away if there's no window to observe
+	 */
+	public View waitForView(Selector selector, long timeout) {
+		long deadline = SystemClock.uptimeMillis() + timeout;
+		
+		while (true) {
+			// in multi window mode a dialog may outlive its activity
+			List<View> roots = getRootViews();
+			
+			if ( ! roots.isEmpty()) observeRoots(roots);
+			
+			// read the change count first so a change during the search still wakes us up
+			int changes = mLayoutObserver.getChanges();
+			
+			View view = getShownView(selector);
+			
+			if (view != null) return view;
+			
+			long remaining = deadline - SystemClock.uptimeMillis();
+			
+			if (remaining <= 0 || roots.isEmpty()) return null;
+			
+			Tracer.begin("fetcher.awaitLayout");
+			try {
+				if ( ! awaitChange(changes, remaining)) return null;
+			} finally {
+				Tracer.end();
+			}
+		}
+	}
+	
+	/**
+	 * Observes every root we search (plus the activity's, which the index and cache follow)
+	 * so a change in any window moves the generation on.
+	 */
+	private void observeRoots(List<View> roots) {
+		View rootView = getRootView();
+		
+		if (rootView != null && ! roots.contains(rootView)) {
+			roots = new ArrayList<View>(roots);
+			roots.add(rootView);
+		}
+		
+		mLayoutObserver.observe(roots);
+	}
+	
+	/**
+	 * Waits for the observed hierarchies to change. A window added after we started
+	 * observing (a dialog popping up) has no listener of ours yet and nothing tells us
+	 * about it, so in multi window mode we wake up every {@link #NEW_WINDOW_INTERVAL}
+	 * to pick up new windows.
+	 * @return false if the time ran out without a change
+	 */
+	private boolean awaitChange(int changes, long remaining) {
+		if ( ! mMultiWindowMode) return mLayoutObserver.awaitChange(changes, remaining);
+		
+		long wait = Math.min(remaining, NEW_WINDOW_INTERVAL);
+		
+		return mLayoutObserver.awaitChange(changes, wait) || wait < remaining;
+	}
+	
+	/**
+	 * @return The first match which is shown, hidden matches earlier in the tree are skipped
+	 */
+	private View getShownView(Selector selector) {
+		View view = getView(selector);
+		
+		if (view == null || isVisibleOnly() || view.isShown()) return view;
+		
+		// a hidden duplicate comes first, only now pay for all the matches
+		for (View match : getViews(selector)) {
+			if (match.isShown()) return match;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Resolves several selectors at once: the hierarchy is copied once into a
+	 * {@link HierarchySnapshot} and every selector is matched against it in a single 
+	 * pass. If some selectors don't match yet we wait for the next layout or draw pass
+	 * and try again, as {@link #waitForView(Selector, long)} does.
+	 * @param selectors The selectors to resolve
+	 * @param timeout Maximum time to wait for all of them in milliseconds
+	 * @return The first shown match of each selector, null for those which didn't show up in time
+	 */
+	public View[] waitForViews(Selector[] selectors, long timeout) {
+		View[] views = new View[selectors.length];
+		
+		long deadline = SystemClock.uptimeMillis() + timeout;
+		
+		while (true) {
+			List<View> roots = getRootViews();
+			
+			if ( ! roots.isEmpty()) observeRoots(roots);
+			
+			int changes = mLayoutObserver.getChanges();
+			
+			if (resolve(selectors, views) == 0) return views;
+			
+			long remaining = deadline - SystemClock.uptimeMillis();
+			
+			if (remaining <= 0 || roots.isEmpty()) return views;
+			
+			if ( ! awaitChange(changes, remaining)) return views;
+		}
+	}
+	
+	/**
+	 * @return The number of selectors left unresolved
+	 */
+	private int resolve(Selector[] selectors, View[] views) {
+		Tracer.begin("fetcher.resolve");
+		try {
+			HashSet<String> properties = new HashSet<String>();
+			for (Selector selector : selectors) properties.addAll(selector.getProperties());
+			
+			for (int i = 0; i < views.length; i++) views[i] = null;
 			
-			// does the current view match the selector?
-			if (matchViewSelector(curView, curSelector)) {
+			int missing = selectors.length;
+			
+			for (View rootView : getRootViews()) {
+				captureSnapshot(rootView, properties);
+				
+				// every selector gets its own memo so all of them are matched in one pass
+				mSnapshotMatcher.reset(mSnapshot, selectors.length);
 				
-				if (curSelector.hasChild())
-					curSelector = curSelector.getChild();
-				else {
-					matchedView = curView; // we've found a match
-					break;
+				for (int node = 0; node < mSnapshot.size() && missing > 0; node++) {
+					for (int i = 0; i < selectors.length; i++) {
+						if (views[i] != null || ! mSnapshotMatcher.matches(selectors[i].getCompounds(), i, node)) continue;
+						
+						View view = mSnapshot.getView(node);
+						
+						// same as waitForView, hidden matches don't count yet
+						if (view == null || ! (isVisibleOnly() || view.isShown())) continue;
+						
+						views[i] = view;
+						missing--;
+					}
 				}
+				
+				if (missing == 0) break;
 			}
 			
-			if (curView instanceof ViewGroup) {
-				// enqueue children
-				ViewGroup curViewGroup = (ViewGroup)curView;
+			return missing;
+		} finally {
+			Tracer.end();
+		}
+	}
+	
+	/**
+	 * Returns every view matching the selector in document order.
+	 * @param selector The css like selector for traversing the view hierarchy
+	 * @return All matching views (empty if there are none)
+	 */
+	public List<View> getViews(Selector selector) {
+		return getViews(selector, NO_LIMIT);
+	}
+	
+	/**
+	 * Returns the views matching the selector in document order using a single
+	 * pre-order traversal. 
+	 * @param selector The css like selector for traversing the view hierarchy
+	 * @param limit Stop walking once this many views have matched ({@link #NO_LIMIT} for all)
+	 * @return The matching views (empty if there are none)
+	 */
+	public List<View> getViews(Selector selector, int limit) {
+		ArrayList<View> matches = new ArrayList<View>();
+		
+		find(selector, limit, matches);
+		
+		return matches;
+	}
+	
+	/**
+	 * Matching is done right to left like a browser does: every view is only checked 
+	 * against the last compound and just those candidates have their ancestors verified 
+	 * (see {@link HierarchyWalker}). Most views fail the last compound so they never 
+	 * pay for the rest of the selector.
+	 * @param matches Collects the matches if not null
+	 * @return The first match or null
+	 */
+	private View find(Selector selector, int limit, List<View> matches) {
+		Tracer.begin("fetcher.find");
+		try {
+			return findInWindows(selector, limit, matches);
+		} finally {
+			Tracer.end();
+		}
+	}
+	
+	private View findInWindows(Selector selector, int limit, List<View> matches) {
+		if ( ! mMultiWindowMode) return find(getRootView(), selector, limit, matches);
+		
+		if (limit == 0) return null;
+		
+		int before = (matches != null ? matches.size() : 0);
+		View firstMatch = null;
+		
+		// topmost window first so a dialog's views win over the activity's
+		for (View rootView : getRootViews()) {
+			int found = (matches != null ? matches.size() - before : (firstMatch != null ? 1 : 0));
+			
+			if (found == limit || (matches == null && found > 0)) break;
+			
+			View match = find(rootView, selector, (limit == NO_LIMIT ? NO_LIMIT : limit - found), matches);
+			
+			if (firstMatch == null) firstMatch = match;
+		}
+		
+		return firstMatch;
+	}
+	
+	private View find(View rootView, Selector selector, int limit, List<View> matches) {
+		if (rootView == null || limit == 0) return null;
+		
+		if (mSnapshotMode || mParallelMatcher != null) return findInSnapshot(rootView, selector, limit, matches);
+		
+		Selector[] compounds = selector.getCompounds();
+		
+		// the index follows the activity's window only
+		if (mIndexMode && ViewIndex.isIndexable(compounds[compounds.length - 1]) && rootView == getRootView())
+			return findInIndex(rootView, compounds, limit, matches);
+		
+		Selector target = compounds[compounds.length - 1];
+		
+		View firstMatch = null;
+		int found = 0;
+		
+		mWalker.reset(rootView, 1);
+		
+		try {
+			for (View curView = mWalker.next(); curView != null; curView = mWalker.next()) {
 				
-				for (int i = 0; i < curViewGroup.getChildCount(); i++)  {
-					// we "look ahead" to see if any children match.
-					// if a child matches we restrict our search to that particular
-					// subtree.
+				// cheap check against the last compound first, only then look up the tree
+				if (matchViewSelector(curView, target) && mWalker.ancestorsMatch(compounds, 0)) {
+					if (firstMatch == null) firstMatch = curView;
+					if (matches != null) matches.add(curView);
 					
-					View child = curViewGroup.getChildAt(i);
+					if (++found == limit) break;
+				}
+				
+				mWalker.pushChildren(curView);
+			}
+		} finally {
+			mWalker.clear(); // don't hold on to the hierarchy
+		}
+		
+		return firstMatch;
+	}
+	
+	/**
+	 * Evaluates every alternative of the group during a single pre-order traversal.
+	 * A view matched by several alternatives is reported once, for the first of them.
+	 * @param group The comma separated alternatives
+	 * @param limit Stop walking once this many views have matched ({@link #NO_LIMIT} for all)
+	 * @return The matching views in document order with the alternative each one matched
+	 */
+	public List<SelectorMatch> getMatches(SelectorGroup group, int limit) {
+		Tracer.begin("fetcher.getMatches");
+		try {
+			return getMatchesInWindows(group, limit);
+		} finally {
+			Tracer.end();
+		}
+	}
+	
+	private List<SelectorMatch> getMatchesInWindows(SelectorGroup group, int limit) {
+		ArrayList<SelectorMatch> matches = new ArrayList<SelectorMatch>();
+		
+		if ( ! mMultiWindowMode) {
+			getMatches(getRootView(), group, limit, matches);
+			return matches;
+		}
+		
+		for (View rootView : getRootViews()) {
+			if (matches.size() == limit) break;
+			
+			getMatches(rootView, group, (limit == NO_LIMIT ? NO_LIMIT : limit - matches.size()), matches);
+		}
+		
+		return matches;
+	}
+	
+	private void getMatches(View rootView, SelectorGroup group, int limit, List<SelectorMatch> matches) {
+		if (rootView == null || limit == 0) return;
+		
+		int alternatives = group.size();
+		
+		if (mSnapshotMode || mParallelMatcher != null) {
+			getMatchesInSnapshot(rootView, group, limit, matches);
+			return;
+		}
+		
+		int before = matches.size();
+		
+		mWalker.reset(rootView, alternatives);
+		
+		try {
+			for (View curView = mWalker.next(); curView != null; curView = mWalker.next()) {
+				
+				for (int i = 0; i < alternatives; i++) {
+					Selector[] compounds = group.getAlternative(i).getCompounds();
 					
-					if (matchViewSelector(child, selector)) {
-						viewChildren.clear(); // ignore all previous nodes at one level up (potentially)
-
-						viewChildren.add(child);
-						break; // skip adding the other nodes
+					if (matchViewSelector(curView, compounds[compounds.length - 1]) && mWalker.ancestorsMatch(compounds, i)) {
+						matches.add(new SelectorMatch(curView, i, group.getAlternative(i)));
+						break;
 					}
-					
-					viewChildren.add(child); // otherwise just add normally to breadth first
-					
 				}
+				
+				if (matches.size() - before == limit) break;
+				
+				mWalker.pushChildren(curView);
+			}
+		} finally {
+			mWalker.clear();
+		}
+	}
+	
+	private View findInIndex(View rootView, Selector[] compounds, int limit, List<View> matches) {
+		observeRoots(getRootViews());
+		
+		int generation = mLayoutObserver.getGeneration();
+		
+		if ( ! mIndex.isValid(rootView, generation)) {
+			Tracer.begin("fetcher.index.build");
+			try {
+				mIndex.build(rootView, generation);
+			} finally {
+				Tracer.end();
 			}
+		}
+		
+		View firstMatch = null;
+		int found = 0;
+		
+		for (View candidate : mIndex.getCandidates(compounds[compounds.length - 1])) {
+			if ( ! HierarchyWalker.matches(compounds, candidate, rootView)) continue;
+			
+			// the index covers the whole tree, so apply the pruning to the few candidates instead
+			if (isVisibleOnly() && ! candidate.isShown()) continue;
+			if (isSkipClipped() && ! candidate.getGlobalVisibleRect(mVisibleRect)) continue;
 			
+			if (firstMatch == null) firstMatch = candidate;
+			if (matches != null) matches.add(candidate);
+			
+			if (++found == limit) break;
 		}
 		
-		return matchedView;
+		return firstMatch;
+	}
+	
+	/**
+	 * Copies the current hierarchy with a single hop to the UI thread. The returned
+	 * snapshot is owned by this fetcher and overwritten by the next capture.
+	 * @param properties The accessor based attributes the query needs
+	 * @return The snapshot or null if there is no activity
+	 */
+	HierarchySnapshot captureSnapshot(Set<String> properties) {
+		View rootView = getRootView();
+		
+		if (rootView == null) return null;
+		
+		captureSnapshot(rootView, properties);
+		
+		return mSnapshot;
+	}
+	
+	private void captureSnapshot(View rootView, Set<String> properties) {
+		mCaptureRoot = rootView;
+		mCaptureProperties = properties;
+		
+		Tracer.begin("fetcher.capture");
+		try {
+			if (Looper.myLooper() == Looper.getMainLooper())
+				mCaptureTask.run();
+			else
+				mInstrumentation.runOnMainSync(mCaptureTask);
+		} finally {
+			Tracer.end();
+			
+			mCaptureRoot = null;
+			mCaptureProperties = null;
+		}
+	}
+	
+	private View findInSnapshot(View rootView, Selector selector, int limit, List<View> matches) {
+		captureSnapshot(rootView, selector.getProperties());
+		
+		Selector[] compounds = selector.getCompounds();
+		
+		if (mParallelMatcher != null) {
+			View firstMatch = null;
+			
+			for (Integer node : mParallelMatcher.find(mSnapshot, compounds, limit)) {
+				View view = mSnapshot.getView(node);
+				if (view == null) continue; // gone since the capture
+				
+				if (firstMatch == null) firstMatch = view;
+				if (matches != null) matches.add(view);
+			}
+			
+			return firstMatch;
+		}
+		
+		mSnapshotMatcher.reset(mSnapshot, 1);
+		
+		View firstMatch = null;
+		int found = 0;
+		
+		for (int node = 0; node < mSnapshot.size(); node++) {
+			if ( ! mSnapshotMatcher.matches(compounds, 0, node)) continue;
+			
+			View view = mSnapshot.getView(node);
+			if (view == null) continue; // gone since the capture
+			
+			if (firstMatch == null) firstMatch = view;
+			if (matches != null) matches.add(view);
+			
+			if (++found == limit) break;
+		}
+		
+		return firstMatch;
+	}
+	
+	private void getMatchesInSnapshot(View rootView, SelectorGroup group, int limit, List<SelectorMatch> matches) {
+		captureSnapshot(rootView, group.getProperties());
+		
+		int alternatives = group.size();
+		
+		mSnapshotMatcher.reset(mSnapshot, alternatives);
+		
+		int before = matches.size();
+		
+		for (int node = 0; node < mSnapshot.size() && matches.size() - before != limit; node++) {
+			for (int i = 0; i < alternatives; i++) {
+				if ( ! mSnapshotMatcher.matches(group.getAlternative(i).getCompounds(), i, node)) continue;
+				
+				View view = mSnapshot.getView(node);
+				if (view != null) matches.add(new SelectorMatch(view, i, group.getAlternative(i)));
+				
+				break;
+			}
+		}
 	}
 	
 	public boolean testMatchViewSelector(View view, Selector selector) {
@@ -107,57 +734,29 @@ class ViewFetcher {
 	}
 	
 	/**
-	 * Matches a single element selector against a view. We always make sure to check
-	 * via a "fail first" policy so that we can exit quickly.
+	 * Matches a single element selector against a view. The selector compound
+	 * is compiled once into a cost ordered predicate chain (see {@link ViewMatcher})
+	 * so we exit on the cheapest failing check.
 	 * TODO: should we be using "findViewById"?
 	 * @param view The view to match against
 	 * @param selector The selector we are checking for a match
 	 * @return
 	 */
 	private boolean matchViewSelector(View view, Selector selector) {
-		// check the following:
-		// class
-		// text (if it exists)
-		// tag
-		// integer ID
-		// accessibility description
-		
-		if (selector.getClasses().size() != 0)
-			if ( ! selector.getClasses().contains(view.getClass().getSimpleName()))
-				return false;
-			
-		if (selector.getIntegerID() != -1) // if we've specified an ID, check to make sure view matches
-			
-			if (view.getId() != selector.getIntegerID()) 
-				return false;
-		
-		if (selector.hasAttribute(Selector.Attribute.Tag.toString())) // if we've specified a tag, check to make sure view matches
-			
-			if ( ! selector.getAttribute(Selector.Attribute.Tag.toString())
-								.equals(view.getTag())) 
-				return false;
-		
-		if (selector.hasAttribute(Selector.Attribute.ContentDescription.toString())) // if selector filters by "contentDescription", check view matches
-			
-			if ( ! selector.getAttribute(Selector.Attribute.ContentDescription.toString())
-										.equalsIgnoreCase(
-													(view.getContentDescription() != null    ?
-													 view.getContentDescription().toString() :
-													 null)
-													)) 
-				return false;
-		
-		if (selector.hasAttribute(Selector.Attribute.Text.toString())) // if we filter by text, make sure the view matches
-			
-			if (view instanceof TextView)
-				if ( ! selector.getAttribute(Selector.Attribute.Text.toString())
-									.equalsIgnoreCase(
-												((TextView)view).getText().toString()))
-					return false;
+		return selector.getMatcher().matches(view);
+	}
+	
+	/**
+	 * @return The roots to search topmost first, just the activity's decor view
+	 * unless multi window mode is on
+	 */
+	public List<View> getRootViews() {
+		View rootView = getRootView();
 		
-		// TODO: check for *all* attributes via reflection
+		if ( ! mMultiWindowMode) 
+			return (rootView != null ? Collections.singletonList(rootView) : Collections.<View>emptyList());
 		
-		return true;
+		return mWindowRoots.getRoots(rootView);
 	}
 	
 	public View getRootView() {
@@ -0,0 +1,221 @@
+package com.samstewart.hadaly;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.res.Resources;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Inverted indexes over a view hierarchy: int id, tag and contentDescription
+ * to the views that carry them. Used to answer '#id', '[tag='...']' and
+ * '[contentDescription='...']' lookups without walking the whole tree; the
+ * matcher is then only used to verify the handful of candidates.
+ *
+ * Views are numbered in document order and every posting list is kept in that
+ * order, so lookups return candidates in the same order a walk would find them.
+ *
+ * The index is a snapshot in time; {@link ViewFetcher} rebuilds it whenever the
+ * {@link LayoutObserver} generation changes. Views and the root are held weakly
+ * so an index left behind never keeps a finished activity alive.
+ * @author samstewart
+ *
+ */
+class ViewIndex {
+
+	private static final int[] EMPTY = new int[0];
+
+	private final ArrayList<WeakReference<View>> mViews = new ArrayList<WeakReference<View>>();
+
+	private final HashMap<Integer, IntList> mIds = new HashMap<Integer, IntList>();
+
+	private final HashMap<String, IntList> mTags = new HashMap<String, IntList>();
+
+	// keys are lower cased since contentDescription is matched ignoring case
+	private final HashMap<String, IntList> mContentDescriptions = new HashMap<String, IntList>();
+
+	private WeakReference<View> mRoot;
+
+	private int mGeneration;
+
+	/**
+	 * Rebuilds the index for the hierarchy below root.
+	 * @param generation The layout generation the index is valid for
+	 */
+	public void build(View root, int generation) {
+		clear();
+
+		mRoot = new WeakReference<View>(root);
+		mGeneration = generation;
+
+		ArrayList<View> stack = new ArrayList<View>();
+		stack.add(root);
+
+		while ( ! stack.isEmpty()) {
+			View view = stack.remove(stack.size() - 1);
+			int node = mViews.size();
+
+			mViews.add(new WeakReference<View>(view));
+
+			if (view.getId() != View.NO_ID)
+				add(mIds, Integer.valueOf(view.getId()), node);
+
+			if (view.getTag() instanceof String)
+				add(mTags, (String)view.getTag(), node);
+
+			CharSequence description = view.getContentDescription();
+			if (description != null)
+				add(mContentDescriptions, description.toString().toLowerCase(Locale.US), node);
+
+			if (view instanceof ViewGroup) {
+				ViewGroup group = (ViewGroup)view;
+
+				for (int i = group.getChildCount() - 1; i >= 0; i--)
+					stack.add(group.getChildAt(i));
+			}
+		}
+	}
+
+	public boolean isValid(View root, int generation) {
+		return (mRoot != null && mRoot.get() == root && mGeneration == generation);
+	}
+
+	/**
+	 * @return true if the compound has an id, tag or contentDescription we can look up
+	 */
+	public static boolean isIndexable(Selector compound) {
+		return (compound.getIntegerID() != -1 ||
+				compound.getStringID().length() != 0 ||
+				compound.hasAttribute(Selector.Attribute.Tag.toString()) ||
+				compound.hasAttribute(Selector.Attribute.ContentDescription.toString()));
+	}
+
+	/**
+	 * Returns a superset of the views matching the compound, in document order.
+	 * Callers still have to verify each candidate against the full selector.
+	 * @param compound An indexable compound (see {@link #isIndexable(Selector)})
+	 */
+	public List<View> getCandidates(Selector compound) {
+		int[] nodes;
+
+		if (compound.getIntegerID() != -1) {
+			nodes = get(mIds, Integer.valueOf(compound.getIntegerID()));
+
+		} else if (compound.getStringID().length() != 0) {
+			// string ids match the resource id name, contentDescription or tag
+			String id = compound.getStringID();
+
+			nodes = merge(get(mContentDescriptions, id.toLowerCase(Locale.US)), get(mTags, id));
+
+			int resolved = resolveId(id);
+			if (resolved != 0) nodes = merge(nodes, get(mIds, Integer.valueOf(resolved)));
+
+		} else if (compound.hasAttribute(Selector.Attribute.Tag.toString())) {
+			nodes = get(mTags, compound.getAttribute(Selector.Attribute.Tag.toString()));
+
+		} else {
+			nodes = get(mContentDescriptions,
+						compound.getAttribute(Selector.Attribute.ContentDescription.toString()).toLowerCase(Locale.US));
+		}
+
+		ArrayList<View> candidates = new ArrayList<View>(nodes.length);
+		for (int node : nodes) {
+			View view = mViews.get(node).get();
+			if (view != null) candidates.add(view);
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Drops every view reference.
+	 */
+	public void clear() {
+		mViews.clear();
+		mIds.clear();
+		mTags.clear();
+		mContentDescriptions.clear();
+		mRoot = null;
+	}
+
+	private int resolveId(String name) {
+		View root = (mRoot != null ? mRoot.get() : null);
+
+		if (root == null) return 0;
+
+		Resources resources = root.getResources();
+
+		return resources.getIdentifier(name, "id", root.getContext().getPackageName());
+	}
+
+	private static <K> void add(HashMap<K, IntList> index, K key, int node) {
+		IntList nodes = index.get(key);
+
+		if (nodes == null) {
+			nodes = new IntList();
+			index.put(key, nodes);
+		}
+
+		nodes.add(node);
+	}
+
+	private static <K> int[] get(HashMap<K, IntList> index, K key) {
+		IntList nodes = index.get(key);
+
+		return (nodes != null ? nodes.toArray() : EMPTY);
+	}
+
+	/** Merges two ascending node lists, dropping duplicates. */
+	private static int[] merge(int[] lhs, int[] rhs) {
+		if (lhs.length == 0) return rhs;
+		if (rhs.length == 0) return lhs;
+
+		int[] merged = new int[lhs.length + rhs.length];
+		int i = 0, j = 0, size = 0;
+
+		while (i < lhs.length || j < rhs.length) {
+			int next;
+
+			if (j == rhs.length || (i < lhs.length && lhs[i] <= rhs[j]))
+				next = lhs[i++];
+			else
+				next = rhs[j++];
+
+			if (size == 0 || merged[size - 1] != next) merged[size++] = next;
+		}
+
+		int[] trimmed = new int[size];
+		System.arraycopy(merged, 0, trimmed, 0, size);
+
+		return trimmed;
+	}
+
+	/**
+	 * Growable list of ascending node numbers.
+	 */
+	private static class IntList {
+		private int[] mValues = new int[2];
+
+		private int mSize;
+
+		void add(int value) {
+			if (mSize == mValues.length) {
+				int[] values = new int[mValues.length * 2];
+				System.arraycopy(mValues, 0, values, 0, mSize);
+				mValues = values;
+			}
+
+			mValues[mSize++] = value;
+		}
+
+		int[] toArray() {
+			int[] values = new int[mSize];
+			System.arraycopy(mValues, 0, values, 0, mSize);
+			return values;
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package com.samstewart.hadaly;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.res.Resources;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * A single selector compound compiled into a chain of predicates.
+ *
+ * The chain only contains the checks the compound actually needs and is
+ * ordered by cost: int comparisons first, class checks second and
+ * string/CharSequence attribute checks last. Combined with a "fail first"
+ * policy this keeps the work per visited view as small as possible.
+ *
+ * Compiled once per {@link Selector} (see {@link Selector#getMatcher()}).
+ * @author samstewart
+ *
+ */
+class ViewMatcher {
+
+	/**
+	 * A single check against a view. Lower cost predicates run first.
+	 */
+	static abstract class Predicate {
+
+		static final int COST_INT 		= 0;
+
+		static final int COST_CLASS 	= 1;
+
+		static final int COST_STRING 	= 2;
+
+		static final int COST_LOOKUP 	= 3;
+
+		abstract int cost();
+
+		abstract boolean matches(View view);
+
+		/** Same check against a node of a {@link HierarchySnapshot} */
+		abstract boolean matches(HierarchySnapshot snapshot, int node);
+	}
+
+	private static final Comparator<Predicate> BY_COST = new Comparator<Predicate>() {
+		@Override
+		public int compare(Predicate lhs, Predicate rhs) {
+			return lhs.cost() - rhs.cost();
+		}
+	};
+
+	private static final Set<String> BUILT_IN_ATTRIBUTES = new HashSet<String>();
+	
+	static {
+		for (Selector.Attribute attribute : Selector.Attribute.values())
+			BUILT_IN_ATTRIBUTES.add(attribute.toString());
+	}
+
+	private final Predicate[] mPredicates;
+
+	private ViewMatcher(Predicate[] predicates) {
+		mPredicates = predicates;
+	}
+
+	public static ViewMatcher compile(Selector compound) {
+		ArrayList<Predicate> predicates = new ArrayList<Predicate>(4);
+
+		if (compound.getIntegerID() != -1)
+			predicates.add(new IntegerIdPredicate(compound.getIntegerID()));
+
+		if (compound.getClasses().size() != 0)
+			predicates.add(new ClassPredicate(compound.getClasses()));
+
+		String tag = compound.getAttribute(Selector.Attribute.Tag.toString());
+		if (tag != null)
+			predicates.add(new TagPredicate(tag));
+
+		String contentDescription = compound.getAttribute(Selector.Attribute.ContentDescription.toString());
+		if (contentDescription != null)
+			predicates.add(new ContentDescriptionPredicate(contentDescription));
+
+		String text = compound.getAttribute(Selector.Attribute.Text.toString());
+		if (text != null)
+			predicates.add(new TextPredicate(text));
+
+		if (compound.getStringID().length() != 0)
+			predicates.add(new StringIdPredicate(compound.getStringID()));
+		
+		// everything else is read through its 'getPropName' accessor
+		for (Map.Entry<String, String> attribute : compound.getAttributes().entrySet())
+			if ( ! BUILT_IN_ATTRIBUTES.contains(attribute.getKey()))
+				predicates.add(new PropertyPredicate(attribute.getKey(), attribute.getValue()));
+
+		// stable sort so equal cost predicates keep the order above
+		Collections.sort(predicates, BY_COST);
+
+		return new ViewMatcher(predicates.toArray(new Predicate[predicates.size()]));
+	}
+
+	public boolean matches(View view) {
+		for (int i = 0; i < mPredicates.length; i++)
+			if ( ! mPredicates[i].matches(view)) return false;
+
+		return true;
+	}
+
+	public boolean matches(HierarchySnapshot snapshot, int node) {
+		for (int i = 0; i < mPredicates.length; i++)
+			if ( ! mPredicates[i].matches(snapshot, node)) return false;
+
+		return true;
+	}
+
+	/**
+	 * Adds the accessor based attributes this compound reads so a
+	 * {@link HierarchySnapshot} knows what to copy.
+	 */
+	public void collectProperties(Set<String> properties) {
+		for (int i = 0; i < mPredicates.length; i++)
+			if (mPredicates[i] instanceof PropertyPredicate)
+				properties.add(((PropertyPredicate)mPredicates[i]).mProperty);
+	}
+
+	///////////////////////////////////////////////
+	//////////  Predicates ////////////////////////
+
+	private static class IntegerIdPredicate extends Predicate {
+		private final int mId;
+
+		IntegerIdPredicate(int id) {
+			mId = id;
+		}
+
+		@Override
+		int cost() {
+			return COST_INT;
+		}
+
+		@Override
+		boolean matches(View view) {
+			return view.getId() == mId;
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			return snapshot.getId(node) == mId;
+		}
+	}
+
+	private static class ClassPredicate extends Predicate {
+		private final String[] mClasses;
+
+		ClassPredicate(List<String> classes) {
+			mClasses = classes.toArray(new String[classes.size()]);
+		}
+
+		@Override
+		int cost() {
+			return COST_CLASS;
+		}
+
+		/**
+		 * The view must extend or implement every class in the compound ('.Button.Checkable').
+		 */
+		@Override
+		boolean matches(View view) {
+			return matches(view.getClass());
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			return matches(snapshot.getViewClass(node));
+		}
+
+		private boolean matches(Class<?> viewClass) {
+			Set<String> simpleNames = ClassNames.getSimpleNames(viewClass);
+
+			for (int i = 0; i < mClasses.length; i++)
+				if ( ! simpleNames.contains(mClasses[i])) return false;
+
+			return true;
+		}
+	}
+
+	private static class TagPredicate extends Predicate {
+		private final String mTag;
+
+		TagPredicate(String tag) {
+			mTag = tag;
+		}
+
+		@Override
+		int cost() {
+			return COST_STRING;
+		}
+
+		@Override
+		boolean matches(View view) {
+			return mTag.equals(view.getTag());
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			return mTag.equals(snapshot.getTag(node));
+		}
+	}
+
+	private static class ContentDescriptionPredicate extends Predicate {
+		private final String mContentDescription;
+
+		ContentDescriptionPredicate(String contentDescription) {
+			mContentDescription = contentDescription;
+		}
+
+		@Override
+		int cost() {
+			return COST_STRING;
+		}
+
+		@Override
+		boolean matches(View view) {
+			CharSequence description = view.getContentDescription();
+
+			return (description != null && mContentDescription.equalsIgnoreCase(description.toString()));
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			return mContentDescription.equalsIgnoreCase(snapshot.getContentDescription(node));
+		}
+	}
+
+	private static class TextPredicate extends Predicate {
+		private final String mText;
+
+		TextPredicate(String text) {
+			mText = text;
+		}
+
+		@Override
+		int cost() {
+			return COST_STRING;
+		}
+
+		@Override
+		boolean matches(View view) {
+			// only text views are filtered by text
+			if ( ! (view instanceof TextView)) return true;
+
+			return mText.equalsIgnoreCase(((TextView)view).getText().toString());
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			String text = snapshot.getText(node);
+
+			return (text == null || mText.equalsIgnoreCase(text));
+		}
+	}
+
+	/**
+	 * String IDs are matched against the resource id name ('@+id/more_games'), then
+	 * the accessibility 'contentDescription' and finally the view "tag".
+	 * The resource id is resolved against the view's resources and package and kept
+	 * until a view from other resources or another package comes along, since
+	 * compiled selectors are shared between activities (and apps).
+	 */
+	private static class StringIdPredicate extends Predicate {
+		private static final int UNRESOLVED = 0;
+
+		/** An id and what it was resolved against. */
+		private static class ResolvedId {
+			final WeakReference<Resources> mResources;
+
+			final String mPackageName;
+
+			final int mId;
+
+			ResolvedId(Resources resources, String packageName, int id) {
+				mResources = new WeakReference<Resources>(resources);
+				mPackageName = packageName;
+				mId = id;
+			}
+
+			boolean isFor(Resources resources, String packageName) {
+				return (mResources.get() == resources &&
+						(mPackageName == packageName || (mPackageName != null && mPackageName.equals(packageName))));
+			}
+		}
+
+		private final String mId;
+
+		private volatile ResolvedId mResolved;
+
+		StringIdPredicate(String id) {
+			mId = id;
+		}
+
+		@Override
+		int cost() {
+			return COST_LOOKUP;
+		}
+
+		@Override
+		boolean matches(View view) {
+			int resolvedId = resolve(view.getResources(), view.getContext().getPackageName());
+
+			if (resolvedId != UNRESOLVED && view.getId() == resolvedId) return true;
+
+			CharSequence description = view.getContentDescription();
+			if (description != null && mId.equalsIgnoreCase(description.toString())) return true;
+
+			return mId.equals(view.getTag());
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			int resolvedId = resolve(snapshot.getResources(), snapshot.getPackageName());
+
+			if (resolvedId != UNRESOLVED && snapshot.getId(node) == resolvedId) return true;
+
+			if (mId.equalsIgnoreCase(snapshot.getContentDescription(node))) return true;
+
+			return mId.equals(snapshot.getTag(node));
+		}
+
+		/** @return The resource id for our name in the package, resolved only when the resources or package change */
+		private int resolve(Resources resources, String packageName) {
+			ResolvedId resolved = mResolved;
+
+			if (resolved == null || ! resolved.isFor(resources, packageName)) {
+				int id = (resources != null ? resources.getIdentifier(mId, "id", packageName) : UNRESOLVED);
+
+				resolved = new ResolvedId(resources, packageName, id);
+				mResolved = resolved;
+			}
+
+			return resolved.mId;
+		}
+	}
+
+	/**
+	 * Any other attribute, read via reflection ('[enabled='true']' calls isEnabled()).
+	 * Values are compared as strings ignoring case. Views without the property don't match.
+	 */
+	private static class PropertyPredicate extends Predicate {
+		private final String mProperty;
+
+		private final String mValue;
+
+		PropertyPredicate(String property, String value) {
+			mProperty = property;
+			mValue = value;
+		}
+
+		@Override
+		int cost() {
+			return COST_LOOKUP;
+		}
+
+		@Override
+		boolean matches(View view) {
+			return matches(AttributeAccessors.getValue(view, mProperty));
+		}
+
+		@Override
+		boolean matches(HierarchySnapshot snapshot, int node) {
+			return matches(snapshot.getProperty(node, mProperty));
+		}
+
+		private boolean matches(Object value) {
+			if (value == null || value == AttributeAccessors.NO_PROPERTY) return false;
+
+			return mValue.equalsIgnoreCase(value.toString());
+		}
+	}
+}
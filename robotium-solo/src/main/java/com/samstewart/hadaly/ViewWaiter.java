@@ -0,0 +1,180 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Waits for a selector to match without parking a thread: the selector is evaluated
+ * on the UI thread from the roots' {@link ViewTreeObserver} callbacks (every layout
+ * and every frame) and the future is completed from there. Used by {@link AsyncHadaly}.
+ *
+ * The roots are looked up again on every check, so a wait which outlives its activity
+ * (or runs while a dialog opens) follows the new windows. A new window doesn't make
+ * the old ones lay out, so the roots are also looked up every {@link #NEW_ROOTS_INTERVAL}.
+ *
+ * Owns its own {@link HierarchyWalker} so it never shares traversal state with a
+ * {@link ViewFetcher} running on another thread.
+ * @author samstewart
+ *
+ */
+class ViewWaiter implements ViewTreeObserver.OnGlobalLayoutListener, ViewTreeObserver.OnPreDrawListener {
+
+	/**
+	 * Supplies the roots to search, called on the UI thread.
+	 */
+	interface Roots {
+		/** @return The roots to search topmost first */
+		List<View> getRoots();
+	}
+
+	private static final int NEW_ROOTS_INTERVAL = 250;
+
+	private final Roots mRoots;
+
+	private final Selector[] mCompounds;
+
+	private final HadalyFuture<View> mFuture = new HadalyFuture<View>();
+
+	private final HierarchyWalker mWalker = new HierarchyWalker();
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	// the observed roots and the observer we registered with for each of them
+	private final ArrayList<View> mObservedRoots = new ArrayList<View>();
+
+	private final ArrayList<ViewTreeObserver> mObservers = new ArrayList<ViewTreeObserver>();
+
+	private final Runnable mCheck = new Runnable() {
+		@Override
+		public void run() {
+			check();
+
+			if ( ! mFuture.isDone()) mMainHandler.postDelayed(this, NEW_ROOTS_INTERVAL);
+		}
+	};
+
+	private final Runnable mTimeout = new Runnable() {
+		@Override
+		public void run() {
+			finish(null);
+		}
+	};
+
+	private final Runnable mStop = new Runnable() {
+		@Override
+		public void run() {
+			stop();
+		}
+	};
+
+	ViewWaiter(Roots roots, Selector selector) {
+		mRoots = roots;
+		mCompounds = selector.getCompounds();
+	}
+
+	/**
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return Completed with the first shown match, or null if there was none in time
+	 */
+	public HadalyFuture<View> start(long timeout) {
+		// a cancelled future has to take our listeners down too
+		mFuture.addListener(new HadalyFuture.Listener<View>() {
+			@Override
+			public void onComplete(HadalyFuture<View> future) {
+				if (Looper.myLooper() == Looper.getMainLooper())
+					stop();
+				else
+					mMainHandler.post(mStop);
+			}
+		});
+
+		mMainHandler.post(mCheck); // it may be there already
+		mMainHandler.postDelayed(mTimeout, timeout);
+
+		return mFuture;
+	}
+
+	@Override
+	public void onGlobalLayout() {
+		check();
+	}
+
+	@Override
+	public boolean onPreDraw() {
+		check();
+		return true; // never cancel the draw
+	}
+
+	private void check() {
+		if (mFuture.isDone()) return;
+
+		List<View> roots = mRoots.getRoots();
+
+		observe(roots);
+
+		Selector target = mCompounds[mCompounds.length - 1];
+
+		for (View root : roots) {
+			mWalker.reset(root, 1);
+
+			try {
+				for (View view = mWalker.next(); view != null; view = mWalker.next()) {
+					if (target.getMatcher().matches(view) && mWalker.ancestorsMatch(mCompounds, 0) && view.isShown()) {
+						finish(view);
+						return;
+					}
+
+					mWalker.pushChildren(view);
+				}
+			} finally {
+				mWalker.clear();
+			}
+		}
+	}
+
+	/** Moves our listeners to the roots if they changed. */
+	private void observe(List<View> roots) {
+		if (roots.equals(mObservedRoots)) return; // views compare by identity
+
+		detach();
+
+		for (View root : roots) {
+			ViewTreeObserver observer = root.getViewTreeObserver();
+			observer.addOnGlobalLayoutListener(this);
+			observer.addOnPreDrawListener(this);
+
+			mObservedRoots.add(root);
+			mObservers.add(observer);
+		}
+	}
+
+	/** Called on the UI thread. */
+	private void finish(View view) {
+		mFuture.complete(view); // stops us through the listener
+	}
+
+	/** Removes our callbacks and listeners once the future is done, called on the UI thread. */
+	private void stop() {
+		mMainHandler.removeCallbacks(mTimeout);
+		mMainHandler.removeCallbacks(mCheck);
+
+		detach();
+	}
+
+	private void detach() {
+		for (ViewTreeObserver observer : mObservers) {
+			if ( ! observer.isAlive()) continue;
+
+			observer.removeGlobalOnLayoutListener(this);
+			observer.removeOnPreDrawListener(this);
+		}
+
+		mObservedRoots.clear();
+		mObservers.clear();
+	}
+}
@@ -1,5 +1,7 @@
 package com.samstewart.hadaly;
 
+import java.util.Collections;
+
 import junit.framework.Assert;
 import android.content.Context;
 import android.graphics.PointF;
@@ -15,11 +17,8 @@ import com.samstewart.hadaly.actions.WebViewFetcher;
 
 public class WebViewWrapper {
 
-    private static final int WAIT_PAGE_RELOAD  = 2000;
-    private static final int WAIT_PAGE_SCROLL  = 2000;
-    private static final int WAIT_PROTOCOL_SET = 200;
-    
-    private static final int WAIT_BREAK = 1000;
+    // upper bounds, we only wait as long as the page / main thread is actually busy
+    private static final int WAIT_PAGE_RELOAD  = 10000;
     
     public static int DEFAULT_WEBVIEW_ELEMENT_WIDTH = 50;
     public static int DEFAULT_WEBVIEW_ELEMENT_HEIGHT = 50;
@@ -27,6 +26,7 @@ public class WebViewWrapper {
     private WebView mWebView;
     private InstrumentationTestCase mTestCase;
     private WebViewFetcher mFetcher;
+    private IdleSynchronizer mIdleSynchronizer;
     
     private RectF mElement;
     
@@ -81,8 +81,13 @@ public class WebViewWrapper {
     }
     
     public WebViewWrapper(WebView webView, InstrumentationTestCase testCase) {
+        this(webView, testCase, new IdleSynchronizer());
+    }
+    
+    public WebViewWrapper(WebView webView, InstrumentationTestCase testCase, IdleSynchronizer idleSynchronizer) {
         mWebView = webView;
         mTestCase = testCase;
+        mIdleSynchronizer = idleSynchronizer;
         
         mFetcher = new WebViewFetcher(mWebView);
         
@@ -90,10 +95,10 @@ public class WebViewWrapper {
         
         try {
             mWebView.loadUrl(mWebView.getOriginalUrl());
-            Thread.sleep(WAIT_PAGE_RELOAD);
+            waitForReload(mWebView, mIdleSynchronizer, WAIT_PAGE_RELOAD);
 
             PHContentView.setWebviewProtocolVersion(mWebView);
-            Thread.sleep(WAIT_PROTOCOL_SET);
+            mIdleSynchronizer.waitForIdle(mWebView.getRootView());
         } catch (Exception e) { // swallow all exceptions
             e.printStackTrace();
             Assert.fail(e.getMessage());
@@ -115,11 +120,8 @@ public class WebViewWrapper {
             Assert.fail(e.getMessage());
         }
         
-        try {
-            Thread.sleep(WAIT_PAGE_SCROLL);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        // the scroll animates through computeScroll, idle once it has settled
+        mIdleSynchronizer.waitForIdle(mWebView.getRootView());
     }
     
     public void tapOnElement(final String selector) {
@@ -149,11 +151,7 @@ public class WebViewWrapper {
             e.printStackTrace();
         }
 
-        try {
-            Thread.sleep(WAIT_BREAK);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        mIdleSynchronizer.waitForIdle(mWebView.getRootView());
     }
     
     public void inputText(String selector, String text) {
@@ -161,16 +159,54 @@ public class WebViewWrapper {
         
         mTestCase.getInstrumentation().sendStringSync(text);
         
-        try {
-            Thread.sleep(WAIT_BREAK);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        mIdleSynchronizer.waitForIdle(mWebView.getRootView());
+    }
+    
+    /**
+     * Waits until the web view reports the page as fully loaded and the main thread has settled.
+     */
+    public static boolean waitForPageLoad(final WebView webView, IdleSynchronizer idleSynchronizer, long timeout) {
+        return idleSynchronizer.waitForIdle(Collections.singletonList(webView.getRootView()), 
+                                            new IdleSynchronizer.Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return webView.getProgress() == 100;
+            }
+        }, timeout);
+    }
+    
+    /**
+     * Waits for a load started right before the call (e.g. loadUrl() or reload()) to finish.
+     * The progress of the previous page is still 100 until the new load gets going, so the
+     * progress has to drop first before 100 means the new page is in. A load which starts
+     * and finishes entirely between two idle checks isn't seen and runs into the timeout.
+     */
+    public static boolean waitForReload(final WebView webView, IdleSynchronizer idleSynchronizer, long timeout) {
+        return idleSynchronizer.waitForIdle(Collections.singletonList(webView.getRootView()), 
+                                            new IdleSynchronizer.Condition() {
+            private boolean mLoading;
+            
+            @Override
+            public boolean isSatisfied() {
+                int progress = webView.getProgress();
+                
+                if (progress < 100) mLoading = true;
+                
+                return mLoading && progress == 100;
+            }
+        }, timeout);
     }
     
     public String getText(String selector) {
         return mFetcher.getText(selector);
     }
+    
+    /**
+     * Reads the text of an HTML element without blocking, completed from the JS bridge.
+     */
+    public HadalyFuture<String> getTextAsync(String selector) {
+        return mFetcher.getTextAsync(selector);
+    }
 
     public void closeSoftKeyboard() {
         InputMethodManager imm = 
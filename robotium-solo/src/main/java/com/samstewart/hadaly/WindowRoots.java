@@ -0,0 +1,133 @@
+package com.samstewart.hadaly;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.view.View;
+
+/**
+ * Enumerates the root view of every window attached to the process: the activity's
+ * decor view but also dialogs, popup windows, spinner dropdowns and toasts.
+ *
+ * There's no public API for this so we read the window manager's list of roots
+ * through reflection ('WindowManagerImpl.getDefault().mViews' on older platforms,
+ * 'WindowManagerGlobal.getInstance().mViews' on newer ones).
+ *
+ * The window manager replaces its root array whenever a window is added or removed
+ * so we only rebuild our own list when the array (or, for the list based versions,
+ * its contents) changes. Roots are returned topmost first: windows are stacked in
+ * the order they were added, dialogs and popups on top of their activity.
+ * @author samstewart
+ *
+ */
+class WindowRoots {
+
+	private static final String[][] WINDOW_MANAGERS = {
+		{ "android.view.WindowManagerGlobal", "getInstance" },
+		{ "android.view.WindowManagerImpl", "getDefault" },
+	};
+
+	private Object mWindowManager;
+
+	private Field mViewsField;
+
+	private boolean mResolved;
+
+	// the window manager's roots as of the last refresh, used to spot changes
+	private Object[] mLastViews = new Object[0];
+
+	private List<View> mRoots = Collections.emptyList();
+
+	/**
+	 * @param fallback Returned on its own if the window manager can't be read
+	 * @return The root of every window currently shown, topmost first
+	 */
+	public synchronized List<View> getRoots(View fallback) {
+		Object[] views = readViews();
+
+		if (views == null)
+			return (fallback != null ? Collections.singletonList(fallback) : Collections.<View>emptyList());
+
+		if ( ! sameViews(views)) {
+			mLastViews = views;
+
+			ArrayList<View> roots = new ArrayList<View>(views.length);
+			for (int i = views.length - 1; i >= 0; i--)
+				if (views[i] instanceof View) roots.add((View)views[i]);
+
+			mRoots = roots;
+		}
+
+		// activities behind the current one keep their windows but hide the decor
+		ArrayList<View> shown = new ArrayList<View>(mRoots.size());
+		for (View root : mRoots)
+			if (root.getVisibility() == View.VISIBLE && root.getWindowToken() != null) shown.add(root);
+
+		if (shown.isEmpty() && fallback != null) shown.add(fallback);
+
+		return shown;
+	}
+
+	/**
+	 * Drops every view reference.
+	 */
+	public synchronized void clear() {
+		mLastViews = new Object[0];
+		mRoots = Collections.emptyList();
+	}
+
+	private boolean sameViews(Object[] views) {
+		if (views == mLastViews) return true;
+		if (views.length != mLastViews.length) return false;
+
+		for (int i = 0; i < views.length; i++)
+			if (views[i] != mLastViews[i]) return false;
+
+		return true;
+	}
+
+	/**
+	 * @return The window manager's roots in the order they were added or null if we can't read them
+	 */
+	private Object[] readViews() {
+		if ( ! mResolved) resolve();
+
+		if (mViewsField == null) return null;
+
+		try {
+			Object views = mViewsField.get(mWindowManager);
+
+			if (views instanceof Object[]) return (Object[])views; // shared, never mutated in place
+			if (views instanceof List) return ((List<?>)views).toArray();
+
+			return new Object[0]; // no windows yet
+
+		} catch (Exception e) {
+			return null; // list changed under us or access denied, don't fail the query over it
+		}
+	}
+
+	private void resolve() {
+		mResolved = true;
+
+		for (String[] windowManager : WINDOW_MANAGERS) {
+			try {
+				Class<?> managerClass = Class.forName(windowManager[0]);
+
+				Object manager = managerClass.getMethod(windowManager[1]).invoke(null);
+
+				Field views = managerClass.getDeclaredField("mViews");
+				views.setAccessible(true);
+
+				mWindowManager = manager;
+				mViewsField = views;
+				return;
+
+			} catch (Exception e) {
+				// not this platform version, try the next one
+			}
+		}
+	}
+}
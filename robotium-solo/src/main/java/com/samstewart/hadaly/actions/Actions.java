@@ -1,5 +1,7 @@
 package com.samstewart.hadaly.actions;
 
+import com.samstewart.hadaly.IdleSynchronizer;
+
 /**
  * Simple utility class for creating various actions
  * @author samstewart
@@ -14,10 +16,18 @@ public class Actions {
 		return new TapWebviewAction(elementSelector);
 	}
 	
+	public static TapWebviewAction tapWebviewAction(String elementSelector, IdleSynchronizer idleSynchronizer) {
+		return new TapWebviewAction(elementSelector, idleSynchronizer);
+	}
+	
 	public static TextEntryAction enterTextAction(String text) {
 		return new TextEntryAction(text);
 	}
 	
+	public static TextEntryAction enterTextAction(String text, IdleSynchronizer idleSynchronizer) {
+		return new TextEntryAction(text, idleSynchronizer);
+	}
+	
 	public static SendKeyCodeAction sendKeycodeAction(int keycode) {
 		return new SendKeyCodeAction(keycode);
 	}
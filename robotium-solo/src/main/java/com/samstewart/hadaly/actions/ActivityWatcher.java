@@ -1,167 +1,379 @@
 package com.samstewart.hadaly.actions;
 
-import java.util.Stack;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Assert;
 import android.app.Activity;
 import android.app.Instrumentation;
 import android.app.Instrumentation.ActivityMonitor;
 import android.content.IntentFilter;
+import android.os.Looper;
+import android.view.View;
 
 import com.samstewart.hadaly.Hadaly;
+import com.samstewart.hadaly.IdleSynchronizer;
 
 /**
  * Monitors the current activity and history stack.
  * Used by {@link Hadaly}.
- * We have to perform quite a bit of synchronization since the Timer runs
- * on a background thread.
+ * New activities are pushed the moment they're created: a listener thread blocks
+ * on the {@link ActivityMonitor}, which the instrumentation wakes from
+ * callActivityOnCreate, so nothing runs while no activities start. Finished
+ * activities are dropped whenever the history is read.
+ * The monitor only keeps the last activity it saw, so when several are created before
+ * the listener wakes (an activity which starts another from onCreate) only the newest
+ * makes it into the history and is counted by waitForNewActivity(). An activity which
+ * is created while the listener is busy with the previous one is taken right after it.
+ * The history only holds weak references so finished activities (and everything
+ * they hold on to) can be collected while the suite runs. Reading the current
+ * activity takes no lock; changes to the history are made under mHistoryLock.
  * TODO: add some assertions to avoid nulls, etc.?
  * @author samstewart
  *
  */
 public class ActivityWatcher {
+
+	// oldest first, the current activity is the last live entry
+	private final CopyOnWriteArrayList<WeakReference<Activity>> mActivityHistory = new CopyOnWriteArrayList<WeakReference<Activity>>();
+	
+	// the last entry of the history, so it can be read without a lock
+	private final AtomicReference<WeakReference<Activity>> mCurrentActivity = new AtomicReference<WeakReference<Activity>>();
+	
+	// serializes changes to the history, also notified when an activity starts
+	private final Object	mHistoryLock = new Object();
 	
-	private Stack<Activity> mActivityHistory; // TODO: might be potential memory leak?
+	private Instrumentation mInstrumentation;
 	
 	private ActivityMonitor mActivityMonitor;
 	
-	private Timer 			mActivityWatcherPump;
+	private IdleSynchronizer mIdleSynchronizer;
+	
+	private Thread			mActivityListener;
+	
+	private volatile boolean mListening = true;
+	
+	// bumped for every activity the monitor hands us, guarded by mHistoryLock
+	private int				mActivitiesStarted;
 	
-	private final int		ACTIVITY_REFRESH_INTERVAL = 50;
+	// how many of those waitForNewActivity() has already seen
+	private int				mActivitiesSeen;
 	
 	private final int 		ACTIVITY_WAIT_TIMEOUT 	  = 3000;
 	
-	private TimerTask		mActivityRefresh = new TimerTask() {
+	// only bounds a single wait, the listener is woken by new activities and by tearDown()
+	private final int		LISTENER_WAIT_TIMEOUT	  = 60000;
+	
+	private Runnable		mActivityListenerLoop = new Runnable() {
 		@Override
 		public void run() {
-			synchronized (mActivityMonitor) {
+			while (mListening) {
+				// blocks until an activity is created (or we're interrupted)
+				Activity activity = mActivityMonitor.waitForActivityWithTimeout(LISTENER_WAIT_TIMEOUT);
+				
+				if (activity == null) continue;
 				
-				synchronized (mActivityHistory) {					
-					// what if any of our activities are finishing? Kill em'
-					for (Activity activity : mActivityHistory) {
-						if (activity.isFinishing()) {
-							mActivityHistory.remove(activity);
-							return;
-						}
-							
+				synchronized (mHistoryLock) {
+					// also take whatever was created while we were busy
+					for (; activity != null; activity = pendingActivity()) {
+						if ( ! activityAlreadyAdded(activity)) push(activity);
+						
+						mActivitiesStarted++;
 					}
 					
-					// running on a background thread remember!
-					Activity lastActivity = mActivityMonitor.getLastActivity();
-					
-					if (lastActivity == null) return;
-					
-					if (activityAlreadyAdded(lastActivity)) return; // same as current activity
-
-					// if none of the others, it must be a brand new activity, add it.
-					mActivityHistory.push(lastActivity);
+					mHistoryLock.notifyAll();
 				}
 			}
-			
-
 		}
 	};
 	
+	/** @return The activity the monitor caught since we last took one, without waiting */
+	private Activity pendingActivity() {
+		if (mActivityMonitor.getLastActivity() == null) return null;
+		
+		return mActivityMonitor.waitForActivityWithTimeout(0); // only we take from the monitor, so it won't wait
+	}
+	
 	public void tearDown() {
-		mActivityHistory.clear();
-		mActivityRefresh.cancel(); 
-		mActivityRefresh = null;
+		mListening = false;
+		mActivityListener.interrupt(); // wakes the monitor wait
 		
-		mActivityWatcherPump.cancel();
-		mActivityWatcherPump = null;
+		mInstrumentation.removeMonitor(mActivityMonitor);
 		
-				
+		synchronized (mHistoryLock) {
+			mActivityHistory.clear();
+			mCurrentActivity.set(null);
+		}
 	}
+	
 	private boolean activityAlreadyAdded(Activity activity) {
-		return mActivityHistory.contains(activity); // check the entire stack
+		for (WeakReference<Activity> entry : mActivityHistory) {
+			if (entry.get() == activity) return true; // check the entire history
+		}
+		
+		return false;
+	}
+	
+	/** Callers hold mHistoryLock. */
+	private void push(Activity activity) {
+		WeakReference<Activity> entry = new WeakReference<Activity>(activity);
+		
+		mActivityHistory.add(entry);
+		mCurrentActivity.set(entry);
+	}
+	
+	private void remove(Activity activity) {
+		synchronized (mHistoryLock) {
+			for (WeakReference<Activity> entry : mActivityHistory) {
+				if (entry.get() == activity) mActivityHistory.remove(entry);
+			}
+			
+			updateCurrentActivity();
+		}
+	}
+	
+	/** Callers hold mHistoryLock. */
+	private void updateCurrentActivity() {
+		int size = mActivityHistory.size();
+		
+		mCurrentActivity.set(size > 0 ? mActivityHistory.get(size - 1) : null);
+	}
+	
+	private static boolean isLive(Activity activity) {
+		return activity != null && ! activity.isFinishing();
+	}
+	
+	/**
+	 * Drops activities which have finished or been collected since we last looked.
+	 * @return The activities still alive, oldest first
+	 */
+	private List<Activity> pruneFinishedActivities() {
+		ArrayList<Activity> live = new ArrayList<Activity>();
+		ArrayList<WeakReference<Activity>> dead = null;
+		
+		// iterating a copy on write list never fails, even while others change it
+		for (WeakReference<Activity> entry : mActivityHistory) {
+			Activity activity = entry.get();
+			
+			if (isLive(activity)) {
+				live.add(activity);
+			} else {
+				if (dead == null) dead = new ArrayList<WeakReference<Activity>>();
+				dead.add(entry);
+			}
+		}
+		
+		if (dead != null) {
+			synchronized (mHistoryLock) {
+				mActivityHistory.removeAll(dead);
+				updateCurrentActivity();
+			}
+		}
+		
+		return live;
 	}
 	
 	public ActivityWatcher(Instrumentation instr, Activity rootActivity) {
-		mActivityHistory = new Stack<Activity>();
-		mActivityHistory.push(rootActivity);
+		this(instr, rootActivity, new IdleSynchronizer());
+	}
+	
+	public ActivityWatcher(Instrumentation instr, Activity rootActivity, IdleSynchronizer idleSynchronizer) {
+		mInstrumentation = instr;
+		mIdleSynchronizer = idleSynchronizer;
+		push(rootActivity);
 		
 		// Note: you can filter by whatever you wish
 		IntentFilter filter = null;
 		mActivityMonitor = instr.addMonitor(filter, null, false);
 		
 		// start listening for new activities
-		mActivityWatcherPump = new Timer();
-		mActivityWatcherPump.schedule(mActivityRefresh, 0, ACTIVITY_REFRESH_INTERVAL);
+		mActivityListener = new Thread(mActivityListenerLoop, Hadaly.LOGGING_TAG + "-activities");
+		mActivityListener.setDaemon(true); // never keep the test process alive
+		mActivityListener.start();
 	}
 	
 	
-	public synchronized Activity getCurrentActivity() {
-		synchronized (mActivityHistory) {
-			return (mActivityHistory.empty() ? null : mActivityHistory.peek());
-		}
+	public Activity getCurrentActivity() {
+		WeakReference<Activity> current = mCurrentActivity.get();
+		Activity activity = (current != null ? current.get() : null);
+		
+		if (isLive(activity)) return activity; // the common case, no locks
+		
+		List<Activity> live = pruneFinishedActivities();
+		
+		return (live.isEmpty() ? null : live.get(live.size() - 1));
 	}
 	
-	public synchronized Activity getInitialActivity() {
-		if (mActivityHistory.size() > 0)
-			return mActivityHistory.get(0);
+	public Activity getInitialActivity() {
+		List<Activity> live = pruneFinishedActivities();
 		
-		return null;
+		return (live.isEmpty() ? null : live.get(0));
 	}
 	
-	public synchronized Activity getRootActivity() {
+	public Activity getRootActivity() {
 		return getInitialActivity();
 	}
 	
-	public synchronized Activity getActivity(int index) {
-		return mActivityHistory.get(index);
+	public Activity getActivity(int index) {
+		return pruneFinishedActivities().get(index);
 	}
 	
-	public synchronized  int getTotalActivities() {
-		return mActivityHistory.size();
+	public int getTotalActivities() {
+		return pruneFinishedActivities().size();
 	}
 	
+	/**
+	 * Waits for an activity we haven't waited for before to be created, returns right
+	 * away if one was created since the last call.
+	 */
 	public void waitForNewActivity() {
-		// TODO: check to make sure we actually got a new activity (check hit count)
-		Activity newActivity = mActivityMonitor.waitForActivityWithTimeout(ACTIVITY_WAIT_TIMEOUT);
+		long deadline = System.currentTimeMillis() + ACTIVITY_WAIT_TIMEOUT;
 		
-		Assert.assertNotNull(newActivity);
-		
-		if (activityAlreadyAdded(newActivity)) return;
+		synchronized (mHistoryLock) {
+			while (mActivitiesSeen == mActivitiesStarted) {
+				long remaining = deadline - System.currentTimeMillis();
+				
+				Assert.assertTrue("Timed out waiting for a new activity", remaining > 0);
+				
+				try {
+					mHistoryLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Assert.fail(e.getMessage());
+				}
+			}
+			
+			mActivitiesSeen = mActivitiesStarted;
+		}
+	}
+	
+	/**
+	 * Waits for there to be a current activity at all, e.g. while the first one is
+	 * still being created. Woken by the listener, so nothing runs in the meantime.
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return The current activity, or null if there was none in time
+	 */
+	public Activity waitForCurrentActivity(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
 		
-		synchronized (mActivityHistory) {
-			mActivityHistory.push(newActivity);
+		synchronized (mHistoryLock) {
+			Activity activity;
+			
+			while ((activity = getCurrentActivity()) == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				
+				if (remaining <= 0) return null;
+				
+				try {
+					mHistoryLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Assert.fail(e.getMessage());
+				}
+			}
+			
+			return activity;
 		}
+	}
+	
+	/**
+	 * Waits until an activity of the class is the current one and has been resumed
+	 * (its window is attached). Checked from the UI thread each time it goes idle, so
+	 * this returns as soon as the activity is up rather than after a fixed delay.
+	 * Must not be called on the UI thread, the activity can't come up while we block it.
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @return The activity, or null if it didn't show up in time
+	 */
+	public <T extends Activity> T waitForActivity(final Class<T> activityClass, long timeout) {
+		Assert.assertFalse("Can't wait for an activity on the UI thread", Looper.myLooper() == Looper.getMainLooper());
+		
+		final AtomicReference<Activity> match = new AtomicReference<Activity>();
+		
+		boolean shown = mIdleSynchronizer.waitForIdle(Collections.<View>emptyList(), new IdleSynchronizer.Condition() {
+			@Override
+			public boolean isSatisfied() {
+				Activity activity = getCurrentActivity();
+				
+				if ( ! activityClass.isInstance(activity) || ! hasWindow(activity)) return false;
+				
+				match.set(activity);
+				return true;
+			}
+		}, timeout);
 		
+		return (shown ? activityClass.cast(match.get()) : null);
+	}
+	
+	// the window is added when the activity is first resumed and removed when it's destroyed
+	private static boolean hasWindow(Activity activity) {
+		return activity.getWindow().getDecorView().getWindowToken() != null;
 	}
 	
 	public void sleep(int time) {
 		try {
 			Thread.sleep(time);
-			
+		
 		} catch (Exception e) {
 			e.printStackTrace();
 			Assert.fail(e.getMessage());
 		}
 	}
 	
-	public synchronized void closeCurrentActivity() {
-		synchronized (mActivityHistory) {
-			if (mActivityHistory.empty()) return;;
-			
-			mActivityHistory.pop().finish();
-			
-			// sleep for a few seconds to let the system catch up
-			sleep(600);
-		}
+	public void closeCurrentActivity() {
+		Activity activity = getCurrentActivity();
+		
+		if (activity == null) return;
+		
+		close(Collections.singletonList(activity));
 	}
 	
-	public synchronized void closeAllActivities() {
-		while ( ! mActivityHistory.empty()) {
-			closeCurrentActivity();
-		}
+	/**
+	 * Finishes the whole history at once, newest first, then waits for all of it to be destroyed.
+	 */
+	public void closeAllActivities() {
+		List<Activity> activities = pruneFinishedActivities();
+		Collections.reverse(activities);
+		
+		close(activities);
 	}
 	
-	public synchronized void assertActivityShowing(Class<? extends Activity> activityClass) {
-		synchronized (mActivityHistory) {
-			Assert.assertEquals(activityClass, getCurrentActivity().getClass());
+	private void close(List<Activity> activities) {
+		for (Activity activity : activities) {
+			activity.finish();
+			remove(activity);
 		}
 		
+		waitForDestroyed(activities);
+	}
+	
+	/**
+	 * Finishing only posts the pause and destroy to the UI thread, wait for them
+	 * (the window is removed on destroy) and for whatever is left to settle.
+	 */
+	private void waitForDestroyed(final List<Activity> activities) {
+		Activity current = getCurrentActivity();
+		List<View> roots = (current != null ? Collections.singletonList(current.getWindow().getDecorView()) : Collections.<View>emptyList());
+		
+		boolean destroyed = mIdleSynchronizer.waitForIdle(roots, new IdleSynchronizer.Condition() {
+			@Override
+			public boolean isSatisfied() {
+				for (Activity activity : activities) {
+					if (hasWindow(activity)) return false;
+				}
+				
+				return true;
+			}
+		}, mIdleSynchronizer.getTimeout());
+		
+		Assert.assertTrue("Timed out waiting for activities to be destroyed", destroyed);
+	}
+	
+	public void assertActivityShowing(Class<? extends Activity> activityClass) {
+		Activity current = getCurrentActivity();
+		
+		Assert.assertNotNull("No activity is showing", current);
+		Assert.assertEquals(activityClass, current.getClass());
 	}
 }
@@ -4,6 +4,8 @@ import android.app.Activity;
 import android.test.InstrumentationTestCase;
 import android.view.View;
 
+import com.samstewart.hadaly.Tracer;
+
 public class SendKeyCodeAction implements Action {
 
 	private int mKeycode;
@@ -21,7 +23,12 @@ public class SendKeyCodeAction implements Action {
 	@Override
 	public void doAction(Activity activity, InstrumentationTestCase testCase, View view) {
 		
-		testCase.getInstrumentation().sendKeyDownUpSync(mKeycode);
+		Tracer.begin("action.key");
+		try {
+			testCase.getInstrumentation().sendKeyDownUpSync(mKeycode);
+		} finally {
+			Tracer.end();
+		}
 	}
 
 }
@@ -10,6 +10,8 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewConfiguration;
 
+import com.samstewart.hadaly.Tracer;
+
 /** Standard tap action for a view.
  * 
  * For more information on the underlying technique, 
@@ -23,11 +25,14 @@ public class TapAction implements Action {
 	
 	@Override
 	public void doAction(Activity activity, InstrumentationTestCase testCase, View view) {	
+		Tracer.begin("action.tap");
 		try {
 			TouchUtils.clickView(testCase, view);
 		} catch(Exception e) {
 			Assert.fail("Could not tap: " + e.getMessage());
 			e.printStackTrace();
+		} finally {
+			Tracer.end();
 		}
 	}
 	
@@ -1,6 +1,8 @@
 package com.samstewart.hadaly.actions;
 
 import com.playhaven.src.publishersdk.content.PHContentView;
+import com.samstewart.hadaly.IdleSynchronizer;
+import com.samstewart.hadaly.WebViewWrapper;
 
 import junit.framework.Assert;
 import android.app.Activity;
@@ -20,20 +22,26 @@ import android.webkit.WebView;
  */
 public class TapWebviewAction extends TapAction implements Action {
 	
-	private static final int WAIT_PAGE_RELOAD = 2000;
-	
-	private static final int WAIT_PROTOCOL_SET = 200;
+	// upper bound, we only wait as long as the page is actually loading
+	private static final int WAIT_PAGE_RELOAD = 10000;
 	
 	private String mSelector;
 	
 	private RectF mElementRect;
 	
+	private IdleSynchronizer mIdleSynchronizer;
+	
 	public static int DEFAULT_WEBVIEW_ELEMENT_WIDTH = 100;
 	
 	public static int DEFAULT_WEBVIEW_ELEMENT_HEIGHT = 100;
 	
 	public TapWebviewAction(String selector) {
+		this(selector, new IdleSynchronizer());
+	}
+	
+	public TapWebviewAction(String selector, IdleSynchronizer idleSynchronizer) {
 		mSelector = selector;
+		mIdleSynchronizer = idleSynchronizer;
 	}
 	
 	/**
@@ -45,18 +53,18 @@ public class TapWebviewAction extends TapAction implements Action {
 	 * @author samstewart
 	 *
 	 */
-	private class WebViewWrapper extends WebView {
+	private class WebViewRegion extends WebView {
 
 		private WebView mWebview;
 		
 		private RectF mSubRegion;
 		
-		public WebViewWrapper(Context context) {
+		public WebViewRegion(Context context) {
 			super(context);
 			
 		}
 		
-		public WebViewWrapper(WebView webview, RectF subRegion) {
+		public WebViewRegion(WebView webview, RectF subRegion) {
 			super(webview.getContext());
 			
 			mWebview = webview;
@@ -141,16 +149,7 @@ public class TapWebviewAction extends TapAction implements Action {
 		});
 		
 		// wait for reload on instrumentation thread
-		// (empirically tuned)
-		try {
-			Thread.sleep(WAIT_PAGE_RELOAD);
-		} catch (Exception e) { // swallow all exceptions
-			e.printStackTrace();
-			Assert.fail(e.getMessage());
-		}
-			
-		// just in case
-		testCase.getInstrumentation().waitForIdleSync();
+		WebViewWrapper.waitForReload(webviewF, mIdleSynchronizer, WAIT_PAGE_RELOAD);
 		
 		// now set the protocol version again
 		testCase.runTestOnUiThread(new Runnable() {
@@ -160,16 +159,8 @@ public class TapWebviewAction extends TapAction implements Action {
 			}
 		});
 		
-		// just in case
-		testCase.getInstrumentation().waitForIdleSync();
-				
 		// wait for the protocol to set
-		try {
-			Thread.sleep(WAIT_PROTOCOL_SET);
-		} catch (Exception e) { // swallow all exceptions
-			e.printStackTrace();
-			Assert.fail(e.getMessage());
-		}
+		mIdleSynchronizer.waitForIdle(webviewF.getRootView());
 		
 		Assert.assertNotNull(mSelector);
 		
@@ -189,7 +180,7 @@ public class TapWebviewAction extends TapAction implements Action {
 		}
 		
 		// let app catch up..
-		testCase.getInstrumentation().waitForIdleSync();
+		mIdleSynchronizer.waitForIdle(webviewF.getRootView());
 		
 		Assert.assertNotNull(mElementRect);
 		
@@ -202,7 +193,7 @@ public class TapWebviewAction extends TapAction implements Action {
 		// create a webview wrapper which "fakes" the given touch region so we can "click"
 		// on it with TouchUtils.clickView
 		// TODO: should be synchronized access to mElementRect?
-		WebViewWrapper wrapper = new WebViewWrapper(webviewF, mElementRect);
+		WebViewRegion wrapper = new WebViewRegion(webviewF, mElementRect);
 		
 		try {		
 			TouchUtils.clickView(testCase, wrapper); // touch on the wrapper (which has the underlying webview)
@@ -211,11 +202,7 @@ public class TapWebviewAction extends TapAction implements Action {
 			e.printStackTrace();
 		}
 		
-		try {
-			Thread.sleep(3000);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		mIdleSynchronizer.waitForIdle(webviewF.getRootView());
 		
 	}
 	
@@ -1,6 +1,8 @@
 package com.samstewart.hadaly.actions;
 
 import junit.framework.Assert;
+import com.samstewart.hadaly.IdleSynchronizer;
+
 import android.app.Activity;
 import android.app.Instrumentation;
 import android.content.Context;
@@ -20,8 +22,15 @@ public class TextEntryAction implements Action {
 	
 	private String mText;
 	
+	private IdleSynchronizer mIdleSynchronizer;
+	
 	public TextEntryAction(String text) {
+		this(text, new IdleSynchronizer());
+	}
+	
+	public TextEntryAction(String text, IdleSynchronizer idleSynchronizer) {
 		mText = text;
+		mIdleSynchronizer = idleSynchronizer;
 	}
 	
 	@Override
@@ -42,7 +51,7 @@ public class TextEntryAction implements Action {
 				editTextF.setText(""); // clear the field
 			}
 		});
-		testCase.getInstrumentation().waitForIdleSync();
+		mIdleSynchronizer.waitForIdle(editTextF);
 		
 		// should send the text as a series of key events?
 		testCase.getInstrumentation().sendStringSync(mText);
@@ -10,6 +10,8 @@ import android.os.ConditionVariable;
 import android.webkit.WebView;
 
 import com.playhaven.src.utils.PHStringUtil;
+import com.samstewart.hadaly.HadalyFuture;
+import com.samstewart.hadaly.Tracer;
 
 
 /**
@@ -89,6 +91,9 @@ public class WebViewFetcher {
 	
 	private WebView mWebView;
 	
+	// completed by getTextCallback for asynchronous callers
+	private final AtomicReference<HadalyFuture<String>> pendingText = new AtomicReference<HadalyFuture<String>>();
+	
 	public WebViewFetcher(WebView webview) {
 		mWebView = webview;
 	}
@@ -104,12 +109,17 @@ public class WebViewFetcher {
 	private void executeJS(String javascript) {
 		if (mWebView == null) return;
 		
-		mWebView.loadUrl("javascript: " + javascript);
-		
-		blocker.close(); // reset
-		
-		// wait until we get a JS callback
-		blocker.block(JS_TIMEOUT);
+		Tracer.begin("js.roundtrip");
+		try {
+			mWebView.loadUrl("javascript: " + javascript);
+			
+			blocker.close(); // reset
+			
+			// wait until we get a JS callback
+			blocker.block(JS_TIMEOUT);
+		} finally {
+			Tracer.end();
+		}
 		
 		// make sure we actually received a callback across the native bridge
 		Assert.assertTrue(didReceiveJSCallback.get());
@@ -139,6 +149,40 @@ public class WebViewFetcher {
 	    return text.get();
 	}
 	
+	/**
+	 * Same as {@link #getText(String)} without blocking: the future is completed straight
+	 * from the JS bridge callback (or failed after the JS timeout). The test framework
+	 * must already be attached.
+	 */
+	public HadalyFuture<String> getTextAsync(String selector) {
+		final HadalyFuture<String> result = new HadalyFuture<String>();
+		
+		if (mWebView == null) return HadalyFuture.failed(new IllegalStateException("No web view"));
+		
+		// one query in flight at a time, fail whichever one we replace
+		HadalyFuture<String> previous = pendingText.getAndSet(result);
+		if (previous != null) previous.fail(new IllegalStateException("Replaced by a newer query"));
+		
+		final String javascript = "javascript: $.fn.getText('" + selector + "');";
+		
+		mWebView.post(new Runnable() {
+			@Override
+			public void run() {
+				mWebView.loadUrl(javascript);
+			}
+		});
+		
+		mWebView.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if (pendingText.compareAndSet(result, null))
+					result.fail(new AssertionError("No JS callback for the text within " + JS_TIMEOUT + "ms"));
+			}
+		}, JS_TIMEOUT);
+		
+		return result;
+	}
+	
 	////////////////////////////////////////////
 	/////////// Callbacks from JS /////////////
 	/////////// Purposely not used locally ////
@@ -164,6 +208,9 @@ public class WebViewFetcher {
 	public void getTextCallback(String result) {
         text.set(result);
         
+        HadalyFuture<String> pending = pendingText.getAndSet(null);
+        if (pending != null) pending.complete(result);
+        
         didReceiveJSCallback.set(true);
         blocker.open();
     }
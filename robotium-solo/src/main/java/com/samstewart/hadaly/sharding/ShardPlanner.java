@@ -0,0 +1,236 @@
+package com.samstewart.hadaly.sharding;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Splits tests (or test classes) across a number of shards so they all finish at
+ * about the same time, using the expected durations from {@link TestDurations}.
+ *
+ * Uses the longest processing time first heuristic: the longest test goes to the
+ * least loaded shard, then the next longest, and so on. The result is never worse
+ * than 4/3 of the best possible split. Tests without history are assumed to take
+ * the median of the known durations.
+ *
+ * Plain Java only, so plans can be made (and checked) on the JVM without a device:
+ *
+ * <pre>
+ * java com.samstewart.hadaly.sharding.ShardPlanner durations.txt 4 [--classes] [--tests tests.txt]
+ * </pre>
+ *
+ * Without --tests only the tests in the history are planned. Pass the suite's tests
+ * (one per line, '-' for stdin) so new tests get a shard too.
+ * @author samstewart
+ *
+ */
+public class ShardPlanner {
+
+	/** Used when there's no history at all. */
+	public static final long DEFAULT_MILLIS = 10000;
+
+	/**
+	 * The tests assigned to one shard.
+	 */
+	public static class Shard {
+		private final int mIndex;
+
+		private final ArrayList<String> mTests = new ArrayList<String>();
+
+		private long mMillis;
+
+		Shard(int index) {
+			mIndex = index;
+		}
+
+		public int getIndex() {
+			return mIndex;
+		}
+
+		public List<String> getTests() {
+			return Collections.unmodifiableList(mTests);
+		}
+
+		/** @return The expected duration of the whole shard */
+		public long getMillis() {
+			return mMillis;
+		}
+
+		void add(String test, long millis) {
+			mTests.add(test);
+			mMillis += millis;
+		}
+	}
+
+	private final Map<String, Long> mDurations;
+
+	private final long mUnknownMillis;
+
+	/**
+	 * @param durations Expected durations in milliseconds, see {@link TestDurations#getDurations()}
+	 * and {@link TestDurations#getClassDurations()}
+	 */
+	public ShardPlanner(Map<String, Long> durations) {
+		mDurations = durations;
+		mUnknownMillis = median(durations);
+	}
+
+	/**
+	 * Plans every test with history.
+	 */
+	public List<Shard> plan(int shards) {
+		return plan(mDurations.keySet(), shards);
+	}
+
+	/**
+	 * @param tests The tests to run, with or without history
+	 * @param shards The number of shards
+	 * @return The shards in index order; the assignment is deterministic for the same input
+	 */
+	public List<Shard> plan(Iterable<String> tests, int shards) {
+		if (shards < 1) throw new IllegalArgumentException("Need at least one shard");
+
+		ArrayList<String> sorted = new ArrayList<String>();
+		for (String test : tests) sorted.add(test);
+
+		// longest first, ties broken by name so the plan is stable
+		Collections.sort(sorted, new Comparator<String>() {
+			@Override
+			public int compare(String lhs, String rhs) {
+				long difference = getMillis(rhs) - getMillis(lhs);
+
+				if (difference != 0) return (difference > 0 ? 1 : -1);
+				return lhs.compareTo(rhs);
+			}
+		});
+
+		ArrayList<Shard> plan = new ArrayList<Shard>(shards);
+		for (int i = 0; i < shards; i++) plan.add(new Shard(i));
+
+		// least loaded shard first, ties go to the lower index
+		PriorityQueue<Shard> loads = new PriorityQueue<Shard>(shards, new Comparator<Shard>() {
+			@Override
+			public int compare(Shard lhs, Shard rhs) {
+				if (lhs.mMillis != rhs.mMillis) return (lhs.mMillis < rhs.mMillis ? -1 : 1);
+				return lhs.mIndex - rhs.mIndex;
+			}
+		});
+		loads.addAll(plan);
+
+		for (String test : sorted) {
+			Shard shard = loads.poll();
+			shard.add(test, getMillis(test));
+			loads.add(shard);
+		}
+
+		return plan;
+	}
+
+	/**
+	 * @return The expected duration used for the test
+	 */
+	public long getMillis(String test) {
+		Long millis = mDurations.get(test);
+
+		return (millis != null ? millis : mUnknownMillis);
+	}
+
+	/**
+	 * Writes the plan as 'shard&lt;tab&gt;test' lines, each shard preceded by a comment
+	 * with its expected duration.
+	 */
+	public static void write(List<Shard> plan, Writer writer) throws IOException {
+		for (Shard shard : plan) {
+			writer.write("# shard " + shard.getIndex() + ": " + shard.getTests().size() + " tests, " + shard.getMillis() + "ms\n");
+
+			for (String test : shard.getTests()) writer.write(shard.getIndex() + "\t" + test + "\n");
+		}
+
+		writer.flush();
+	}
+
+	private static long median(Map<String, Long> durations) {
+		if (durations.isEmpty()) return DEFAULT_MILLIS;
+
+		long[] millis = new long[durations.size()];
+		int i = 0;
+		for (Long duration : durations.values()) millis[i++] = duration;
+
+		Arrays.sort(millis);
+
+		return millis[millis.length / 2];
+	}
+
+	/**
+	 * Reads one test (or class) per line, skipping blank lines and '#' comments.
+	 */
+	public static List<String> readTests(Reader reader) throws IOException {
+		BufferedReader lines = new BufferedReader(reader);
+		ArrayList<String> tests = new ArrayList<String>();
+
+		for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+			line = line.trim();
+
+			if (line.length() != 0 && ! line.startsWith("#")) tests.add(line);
+		}
+
+		return tests;
+	}
+
+	/**
+	 * Usage: ShardPlanner &lt;durations file&gt; &lt;shards&gt; [--classes] [--tests &lt;file or -&gt;]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) usage();
+
+		boolean byClass = false;
+		String testsFile = null;
+
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--classes"))
+				byClass = true;
+			else if (args[i].equals("--tests") && i + 1 < args.length)
+				testsFile = args[++i];
+			else
+				usage();
+		}
+
+		TestDurations history = TestDurations.load(new File(args[0]));
+		int shards = Integer.parseInt(args[1]);
+
+		ShardPlanner planner = new ShardPlanner(byClass ? history.getClassDurations() : history.getDurations());
+
+		List<Shard> plan;
+
+		if (testsFile == null) {
+			plan = planner.plan(shards);
+		} else {
+			Reader reader = (testsFile.equals("-") ? new InputStreamReader(System.in) : new FileReader(testsFile));
+
+			try {
+				plan = planner.plan(readTests(reader), shards);
+			} finally {
+				reader.close();
+			}
+		}
+
+		write(plan, new OutputStreamWriter(System.out));
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ShardPlanner <durations file> <shards> [--classes] [--tests <file or ->]");
+		System.exit(1);
+	}
+}
@@ -0,0 +1,176 @@
+package com.samstewart.hadaly.sharding;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * History of how long each test takes, kept in a small text file so shards can be
+ * planned by duration instead of by count (see {@link ShardPlanner}).
+ *
+ * Tests are identified as 'ClassName#testMethod'. Each entry keeps an exponentially
+ * weighted average of the recorded runs (recent runs count more, so a test that got
+ * faster is picked up after a few runs) and the number of samples. The file has one
+ * entry per line, tab separated:
+ *
+ * <pre>
+ * com.example.LoginTest#testLogin	12450	7
+ * </pre>
+ *
+ * Plain Java only, so it can be used on the JVM as well as on a device.
+ * @author samstewart
+ *
+ */
+public class TestDurations {
+
+	// weight of the newest run in the average
+	private static final double WEIGHT = 0.3;
+
+	private static class Entry {
+		double millis;
+
+		int samples;
+
+		Entry(double millis, int samples) {
+			this.millis = millis;
+			this.samples = samples;
+		}
+	}
+
+	// sorted so the file is stable and diffs well
+	private final TreeMap<String, Entry> mEntries = new TreeMap<String, Entry>();
+
+	/**
+	 * @return The history in the file, or an empty one if the file doesn't exist yet
+	 */
+	public static TestDurations load(File file) throws IOException {
+		if ( ! file.exists()) return new TestDurations();
+
+		FileReader reader = new FileReader(file);
+
+		try {
+			return read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Malformed lines are skipped, a damaged history shouldn't break a run.
+	 */
+	public static TestDurations read(Reader reader) throws IOException {
+		TestDurations durations = new TestDurations();
+		BufferedReader lines = new BufferedReader(reader);
+
+		for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+			if (line.length() == 0 || line.startsWith("#")) continue;
+
+			String[] fields = line.split("\t");
+			if (fields.length < 2) continue;
+
+			try {
+				double millis = Double.parseDouble(fields[1]);
+				int samples = (fields.length > 2 ? Integer.parseInt(fields[2]) : 1);
+
+				durations.mEntries.put(fields[0], new Entry(millis, samples));
+			} catch (NumberFormatException e) {
+				// skip it
+			}
+		}
+
+		return durations;
+	}
+
+	public void save(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+
+		FileWriter writer = new FileWriter(file);
+
+		try {
+			write(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	public void write(Writer writer) throws IOException {
+		writer.write("# test\tmillis\tsamples\n");
+
+		for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+			writer.write(entry.getKey());
+			writer.write('\t');
+			writer.write(Long.toString(Math.round(entry.getValue().millis)));
+			writer.write('\t');
+			writer.write(Integer.toString(entry.getValue().samples));
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * Adds a run to the history.
+	 * @param test The test as 'ClassName#testMethod'
+	 * @param millis How long it took
+	 */
+	public void record(String test, long millis) {
+		Entry entry = mEntries.get(test);
+
+		if (entry == null) {
+			mEntries.put(test, new Entry(millis, 1));
+		} else {
+			entry.millis = WEIGHT * millis + (1 - WEIGHT) * entry.millis;
+			entry.samples++;
+		}
+	}
+
+	/**
+	 * @return The expected duration in milliseconds or -1 if the test has no history
+	 */
+	public long getMillis(String test) {
+		Entry entry = mEntries.get(test);
+
+		return (entry != null ? Math.round(entry.millis) : -1);
+	}
+
+	/**
+	 * @return Every test with its expected duration in milliseconds
+	 */
+	public Map<String, Long> getDurations() {
+		TreeMap<String, Long> durations = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, Entry> entry : mEntries.entrySet())
+			durations.put(entry.getKey(), Math.round(entry.getValue().millis));
+
+		return Collections.unmodifiableMap(durations);
+	}
+
+	/**
+	 * @return The expected duration of every test class (the sum of its tests), for
+	 * runners which shard by class
+	 */
+	public Map<String, Long> getClassDurations() {
+		TreeMap<String, Long> durations = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+			String test = entry.getKey();
+			int separator = test.indexOf('#');
+			String testClass = (separator != -1 ? test.substring(0, separator) : test);
+
+			Long total = durations.get(testClass);
+			durations.put(testClass, (total != null ? total : 0L) + Math.round(entry.getValue().millis));
+		}
+
+		return Collections.unmodifiableMap(durations);
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+}
@@ -0,0 +1,166 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times {@link SelectorParser} against the regex parser it replaced, kept below as
+ * {@link RegexSelector}. Not a test, run it by hand on the JVM:
+ *
+ * <pre>
+ * java com.samstewart.hadaly.SelectorParserBenchmark [iterations]
+ * </pre>
+ * @author samstewart
+ *
+ */
+public class SelectorParserBenchmark {
+
+	private static final String[] SELECTORS = {
+		"#more_games",
+		"#2131230721",
+		".Button#ok",
+		".ListView .TextView[text='Sign_in']",
+		".LinearLayout .FrameLayout .ImageButton#close",
+		".FrameLayout .LinearLayout.Clickable #title[contentDescription='Close_dialog']",
+	};
+
+	private static final int WARM_UP_ITERATIONS = 20000;
+
+	private static final int DEFAULT_ITERATIONS = 200000;
+
+	/**
+	 * The parser before {@link SelectorParser}, without its printlns so they don't
+	 * dominate the timing.
+	 */
+	static class RegexSelector {
+
+		private String curSelector 				= "";
+
+		private RegexSelector child 			= null;
+
+		private int integerID 					= -1;
+
+		private String stringID				    = "";
+
+		private HashMap<String, String> attributes = new HashMap<String, String>();
+
+		private ArrayList<String> classes 		= new ArrayList<String>();
+
+		private final String CHILD_SEPARATOR 	= " ";
+
+		private final String CLASS_REGEX 		= "((?:\\.\\w+)+)";
+
+		private final String ID_REGEX 			= "#(\\w+)";
+
+		private final String ATTRIBUTE_REGEX 	= "\\[(\\w+)='([^\\]]+)'\\]";
+
+		RegexSelector(String selectorStr) {
+			parseSelectorHierarchy(selectorStr);
+		}
+
+		private void parseSelector(String selector) {
+			Pattern pattern = Pattern.compile(CLASS_REGEX);
+			Matcher matcher = pattern.matcher(selector);
+
+			if (matcher.find()) {
+				String allClasses = matcher.group(1);
+
+				classes = new ArrayList<String>(Arrays.asList(allClasses.split("\\.")));
+				classes.remove(0);
+
+				selector = matcher.replaceAll("");
+			}
+
+			pattern = Pattern.compile(ID_REGEX);
+			matcher = pattern.matcher(selector);
+
+			if (matcher.find()) {
+				String idStr = matcher.group(1);
+
+				try {
+					integerID = Integer.parseInt(idStr);
+				} catch (NumberFormatException e) {
+					integerID = -1;
+					stringID = idStr;
+				}
+
+				selector = matcher.replaceAll("");
+			}
+
+			pattern = Pattern.compile(ATTRIBUTE_REGEX);
+			matcher = pattern.matcher(selector);
+
+			while (matcher.find()) {
+				attributes.put(matcher.group(1), matcher.group(2).replace("_", " "));
+			}
+
+			selector = matcher.replaceAll("");
+		}
+
+		private void parseSelectorHierarchy(String fullSelector) {
+			curSelector = (fullSelector.indexOf(CHILD_SEPARATOR) != -1 				 		?
+						   fullSelector.substring(0, fullSelector.indexOf(CHILD_SEPARATOR)) :
+						   fullSelector);
+
+			parseSelector(curSelector);
+
+			if (fullSelector.indexOf(CHILD_SEPARATOR) != -1)
+				child = new RegexSelector(fullSelector.substring(fullSelector.indexOf(CHILD_SEPARATOR) + 1));
+		}
+
+		boolean hasChild() {
+			return child != null;
+		}
+	}
+
+	// keeps the results alive so the parsing can't be optimized away
+	private static int sSink;
+
+	private static long timeRegex(int iterations) {
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			for (String selector : SELECTORS) {
+				if (new RegexSelector(selector).hasChild()) sSink++;
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static long timeParser(int iterations) {
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			for (String selector : SELECTORS) {
+				if (SelectorParser.parse(selector).hasChild()) sSink++;
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, long nanos, int iterations) {
+		System.out.println(name + ": " + (nanos / ((long)iterations * SELECTORS.length)) + "ns per selector");
+	}
+
+	/**
+	 * Usage: SelectorParserBenchmark [iterations]
+	 */
+	public static void main(String[] args) {
+		int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS);
+
+		timeRegex(WARM_UP_ITERATIONS);
+		timeParser(WARM_UP_ITERATIONS);
+
+		long regex = timeRegex(iterations);
+		long parser = timeParser(iterations);
+
+		report("regex", regex, iterations);
+		report("parser", parser, iterations);
+		System.out.println("speedup: " + ((double)regex / parser) + "x (" + sSink + ")");
+	}
+}
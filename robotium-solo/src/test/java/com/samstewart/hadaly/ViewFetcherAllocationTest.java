@@ -0,0 +1,96 @@
+package com.samstewart.hadaly;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * Checks that {@link ViewFetcher#getView(Selector)} doesn't allocate once its walker
+ * has grown to fit the hierarchy. Searches a synthetic tree of {@link #VIEWS} views
+ * and counts the allocations of the calling thread, which is where the search runs.
+ *
+ * Views can't be created against the stub android jar, so this needs a device: it
+ * is left out of the JVM test run and runs with the instrumentation instead.
+ * @author samstewart
+ *
+ */
+public class ViewFetcherAllocationTest extends InstrumentationTestCase {
+
+	// roughly the size of a busy screen
+	private static final int VIEWS = 5000;
+
+	// children per layout
+	private static final int FANOUT = 10;
+
+	private static final int QUERIES = 100;
+
+	private static final int TARGET_ID = 4242;
+
+	public void testGetViewDoesntAllocate() {
+		final View root = buildTree(getInstrumentation().getTargetContext(), VIEWS);
+
+		// the target is the last view in document order so every query walks the whole tree
+		View target = root;
+		while (target instanceof ViewGroup && ((ViewGroup)target).getChildCount() > 0)
+			target = ((ViewGroup)target).getChildAt(((ViewGroup)target).getChildCount() - 1);
+
+		target.setId(TARGET_ID);
+
+		ViewFetcher fetcher = new ViewFetcher(null, getInstrumentation()) {
+			@Override
+			public View getRootView() {
+				return root;
+			}
+		};
+
+		Selector selector = Selector.compile(".LinearLayout #" + TARGET_ID);
+
+		// grows the walker's arrays and compiles the matcher
+		assertSame(target, fetcher.getView(selector));
+
+		Debug.startAllocCounting();
+
+		try {
+			Debug.resetThreadAllocCount();
+
+			for (int i = 0; i < QUERIES; i++) fetcher.getView(selector);
+
+			assertEquals(0, Debug.getThreadAllocCount());
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	/**
+	 * Layouts of {@link #FANOUT} children, every other one another layout, filled breadth first.
+	 */
+	private static View buildTree(Context context, int views) {
+		LinearLayout root = new LinearLayout(context);
+		int created = 1;
+
+		ArrayList<ViewGroup> parents = new ArrayList<ViewGroup>();
+		parents.add(root);
+
+		for (int i = 0; created < views; i++) {
+			ViewGroup parent = parents.get(i);
+
+			for (int j = 0; j < FANOUT && created < views; j++, created++) {
+				if (j % 2 == 0) {
+					LinearLayout layout = new LinearLayout(context);
+					parent.addView(layout);
+					parents.add(layout);
+				} else {
+					parent.addView(new TextView(context));
+				}
+			}
+		}
+
+		return root;
+	}
+}
@@ -0,0 +1,133 @@
+package com.samstewart.hadaly.sharding;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.samstewart.hadaly.sharding.ShardPlanner.Shard;
+
+/**
+ * Plans shards from synthetic histories, no device needed.
+ * @author samstewart
+ *
+ */
+public class ShardPlannerTest extends TestCase {
+
+	private static Map<String, Long> durations(Object... testsAndMillis) {
+		TreeMap<String, Long> durations = new TreeMap<String, Long>();
+
+		for (int i = 0; i < testsAndMillis.length; i += 2)
+			durations.put((String)testsAndMillis[i], ((Number)testsAndMillis[i + 1]).longValue());
+
+		return durations;
+	}
+
+	public void testLongestTestsAreSpreadFirst() {
+		ShardPlanner planner = new ShardPlanner(durations("a", 7, "b", 6, "c", 5, "d", 4, "e", 3, "f", 2, "g", 1));
+
+		List<Shard> plan = planner.plan(3);
+
+		// 7 -> 0, 6 -> 1, 5 -> 2, 4 -> 2, 3 -> 1, 2 -> 0, 1 -> 0
+		assertEquals(Arrays.asList("a", "f", "g"), plan.get(0).getTests());
+		assertEquals(Arrays.asList("b", "e"), plan.get(1).getTests());
+		assertEquals(Arrays.asList("c", "d"), plan.get(2).getTests());
+
+		assertEquals(10, plan.get(0).getMillis());
+		assertEquals(9, plan.get(1).getMillis());
+		assertEquals(9, plan.get(2).getMillis());
+	}
+
+	public void testBalancesBetterThanRoundRobin() {
+		// round robin in name order would put both long tests on shard 0
+		ShardPlanner planner = new ShardPlanner(durations("a", 100, "b", 1, "c", 100, "d", 1));
+
+		List<Shard> plan = planner.plan(2);
+
+		assertEquals(101, plan.get(0).getMillis());
+		assertEquals(101, plan.get(1).getMillis());
+	}
+
+	public void testEqualDurationsAreAssignedByNameAndShardIndex() {
+		ShardPlanner planner = new ShardPlanner(durations("d", 5, "b", 5, "c", 5, "a", 5));
+
+		List<Shard> plan = planner.plan(2);
+
+		assertEquals(Arrays.asList("a", "c"), plan.get(0).getTests());
+		assertEquals(Arrays.asList("b", "d"), plan.get(1).getTests());
+
+		// and the same again, whatever order the tests come in
+		List<Shard> reversed = planner.plan(Arrays.asList("d", "c", "b", "a"), 2);
+
+		assertEquals(plan.get(0).getTests(), reversed.get(0).getTests());
+		assertEquals(plan.get(1).getTests(), reversed.get(1).getTests());
+	}
+
+	public void testTestsWithoutHistoryCostTheMedian() {
+		ShardPlanner planner = new ShardPlanner(durations("a", 1000, "b", 3000, "c", 8000));
+
+		assertEquals(3000, planner.getMillis("new"));
+		assertEquals(8000, planner.getMillis("c"));
+
+		List<Shard> plan = planner.plan(Arrays.asList("a", "b", "c", "new"), 2);
+
+		// c alone, the rest (1000 + 3000 + 3000) on the other shard
+		assertEquals(Arrays.asList("c"), plan.get(0).getTests());
+		assertEquals(7000, plan.get(1).getMillis());
+	}
+
+	public void testEmptyHistoryCostsTheDefault() {
+		ShardPlanner planner = new ShardPlanner(Collections.<String, Long>emptyMap());
+
+		assertEquals(ShardPlanner.DEFAULT_MILLIS, planner.getMillis("anything"));
+
+		List<Shard> plan = planner.plan(Arrays.asList("a", "b", "c"), 2);
+
+		assertEquals(2, plan.get(0).getTests().size());
+		assertEquals(1, plan.get(1).getTests().size());
+	}
+
+	public void testMoreShardsThanTests() {
+		List<Shard> plan = new ShardPlanner(durations("a", 5)).plan(3);
+
+		assertEquals(3, plan.size());
+		assertEquals(Arrays.asList("a"), plan.get(0).getTests());
+		assertTrue(plan.get(1).getTests().isEmpty());
+		assertTrue(plan.get(2).getTests().isEmpty());
+	}
+
+	public void testNeedsAShard() {
+		try {
+			new ShardPlanner(durations("a", 5)).plan(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testReadsATestList() throws Exception {
+		List<String> tests = ShardPlanner.readTests(new StringReader(
+				"# suite\n" +
+				"a#one\n" +
+				"\n" +
+				"  b#two  \n"));
+
+		assertEquals(Arrays.asList("a#one", "b#two"), tests);
+	}
+
+	public void testWritesOneLinePerTest() throws Exception {
+		StringWriter writer = new StringWriter();
+
+		ShardPlanner.write(new ShardPlanner(durations("a", 2, "b", 1)).plan(2), writer);
+
+		assertEquals("# shard 0: 1 tests, 2ms\n" +
+					 "0\ta\n" +
+					 "# shard 1: 1 tests, 1ms\n" +
+					 "1\tb\n", writer.toString());
+	}
+}
@@ -0,0 +1,107 @@
+package com.samstewart.hadaly.sharding;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads, records and writes synthetic duration histories.
+ * @author samstewart
+ *
+ */
+public class TestDurationsTest extends TestCase {
+
+	public void testReadsEntries() throws Exception {
+		TestDurations durations = TestDurations.read(new StringReader(
+				"# test\tmillis\tsamples\n" +
+				"com.example.LoginTest#testLogin\t12450\t7\n" +
+				"com.example.LoginTest#testLogout\t800\n"));
+
+		assertEquals(2, durations.size());
+		assertEquals(12450, durations.getMillis("com.example.LoginTest#testLogin"));
+		assertEquals(800, durations.getMillis("com.example.LoginTest#testLogout"));
+		assertEquals(-1, durations.getMillis("com.example.LoginTest#testMissing"));
+	}
+
+	public void testSkipsMalformedLines() throws Exception {
+		TestDurations durations = TestDurations.read(new StringReader(
+				"\n" +
+				"# a comment\n" +
+				"just a name\n" +
+				"a#noMillis\t\n" +
+				"a#notANumber\tfast\t1\n" +
+				"a#badSamples\t100\tmany\n" +
+				"a#good\t250\t2\n"));
+
+		assertEquals(1, durations.size());
+		assertEquals(250, durations.getMillis("a#good"));
+	}
+
+	public void testRecordsAWeightedAverage() {
+		TestDurations durations = new TestDurations();
+
+		durations.record("a#test", 1000);
+		assertEquals(1000, durations.getMillis("a#test"));
+
+		// the newest run counts 30%
+		durations.record("a#test", 2000);
+		assertEquals(1300, durations.getMillis("a#test"));
+	}
+
+	public void testWritesWhatItReads() throws Exception {
+		TestDurations durations = new TestDurations();
+		durations.record("b#test", 200);
+		durations.record("a#test", 100);
+		durations.record("a#test", 100);
+
+		StringWriter writer = new StringWriter();
+		durations.write(writer);
+
+		assertEquals("# test\tmillis\tsamples\n" +
+					 "a#test\t100\t2\n" +
+					 "b#test\t200\t1\n", writer.toString());
+
+		TestDurations read = TestDurations.read(new StringReader(writer.toString()));
+
+		assertEquals(durations.getDurations(), read.getDurations());
+	}
+
+	public void testSumsClasses() {
+		TestDurations durations = new TestDurations();
+		durations.record("a.A#one", 100);
+		durations.record("a.A#two", 200);
+		durations.record("b.B#one", 50);
+		durations.record("noMethod", 10);
+
+		Map<String, Long> classes = durations.getClassDurations();
+
+		assertEquals(3, classes.size());
+		assertEquals(Long.valueOf(300), classes.get("a.A"));
+		assertEquals(Long.valueOf(50), classes.get("b.B"));
+		assertEquals(Long.valueOf(10), classes.get("noMethod"));
+	}
+
+	public void testMissingFileIsAnEmptyHistory() throws Exception {
+		File file = File.createTempFile("durations", ".txt");
+		file.delete();
+
+		assertEquals(0, TestDurations.load(file).size());
+	}
+
+	public void testSavesAndLoads() throws Exception {
+		File file = File.createTempFile("durations", ".txt");
+
+		try {
+			TestDurations durations = new TestDurations();
+			durations.record("a#test", 1234);
+			durations.save(file);
+
+			assertEquals(1234, TestDurations.load(file).getMillis("a#test"));
+		} finally {
+			file.delete();
+		}
+	}
+}